@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixture file of text and counters, where each counter moves on by its
+ * increment with every step.
+ *
+ * write() formats the file into a reused buffer and rewrites it in place
+ * through a handle kept open, so that the collectors, which keep their own
+ * handle open, see the new contents, and the rewrite between two samples
+ * of a benchmark does not allocate and thus does not show up in its
+ * allocation rate.
+ */
+class CounterFile {
+	// the text before each counter, and after the last one
+	final private byte[][] mText;
+	final private long[] mBase;
+	final private long[] mIncrement;
+	final private int[] mWidth;
+	final private RandomAccessFile mFile;
+	private byte[] mBuffer = new byte[4096];
+
+	private CounterFile(File file, Builder builder) throws IOException {
+		int count = builder.mBase.size();
+		mText = new byte[count + 1][];
+		mBase = new long[count];
+		mIncrement = new long[count];
+		mWidth = new int[count];
+		for (int i = 0; i < count; ++i) {
+			mText[i] = builder.mText.get(i).getBytes("US-ASCII");
+			mBase[i] = builder.mBase.get(i);
+			mIncrement[i] = builder.mIncrement.get(i);
+			mWidth[i] = builder.mWidth.get(i);
+		}
+		mText[count] = builder.mText.get(count).getBytes("US-ASCII");
+		file.getParentFile().mkdirs();
+		mFile = new RandomAccessFile(file, "rw");
+	}
+
+	/**
+	 * Rewrite the file with the counters at the given step.
+	 */
+	public void write(long step) throws IOException {
+		int length = 0;
+		for (int i = 0; i < mBase.length; ++i) {
+			length = append(mText[i], length);
+			length = append(mBase[i] + step * mIncrement[i], mWidth[i], length);
+		}
+		length = append(mText[mBase.length], length);
+		mFile.seek(0);
+		mFile.write(mBuffer, 0, length);
+		mFile.setLength(length);
+	}
+
+	public void close() throws IOException {
+		mFile.close();
+	}
+
+	private int append(byte[] text, int length) {
+		reserve(length + text.length);
+		System.arraycopy(text, 0, mBuffer, length, text.length);
+		return length + text.length;
+	}
+
+	/**
+	 * Append a non-negative value, right aligned to the given width.
+	 */
+	private int append(long value, int width, int length) {
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			++digits;
+		}
+		int end = length + Math.max(digits, width);
+		reserve(end);
+		for (int pos = end - 1; pos >= length; --pos) {
+			if (pos >= end - digits) {
+				mBuffer[pos] = (byte)('0' + value % 10);
+				value /= 10;
+			} else {
+				mBuffer[pos] = ' ';
+			}
+		}
+		return end;
+	}
+
+	private void reserve(int size) {
+		if (size <= mBuffer.length) return;
+		byte[] buffer = new byte[Math.max(mBuffer.length * 2, size)];
+		System.arraycopy(mBuffer, 0, buffer, 0, mBuffer.length);
+		mBuffer = buffer;
+	}
+
+	/**
+	 * Collects the text and counters of a file in order.
+	 */
+	static class Builder {
+		final private List<String> mText = new ArrayList<String>();
+		final private List<Long> mBase = new ArrayList<Long>();
+		final private List<Long> mIncrement = new ArrayList<Long>();
+		final private List<Integer> mWidth = new ArrayList<Integer>();
+		private StringBuilder mPending = new StringBuilder();
+
+		public Builder text(String text) {
+			mPending.append(text);
+			return this;
+		}
+
+		/**
+		 * @param width minimum width, the value is padded with spaces on
+		 * 	the left
+		 */
+		public Builder counter(long base, long increment, int width) {
+			mText.add(mPending.toString());
+			mPending = new StringBuilder();
+			mBase.add(base);
+			mIncrement.add(increment);
+			mWidth.add(width);
+			return this;
+		}
+
+		/**
+		 * Open the file and write it at step 0.
+		 */
+		public CounterFile open(File file) throws IOException {
+			mText.add(mPending.toString());
+			CounterFile result = new CounterFile(file, this);
+			result.write(0);
+			return result;
+		}
+	}
+}
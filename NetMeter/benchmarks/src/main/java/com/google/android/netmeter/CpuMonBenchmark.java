@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One sample of /proc/stat by CpuMon, with the given number of cores,
+ * all of which are busy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CpuMonBenchmark {
+	@Param({ "1", "8" })
+	public int cores;
+
+	private File mRoot;
+	private CpuMon mCpuMon;
+	private CounterFile mCounters;
+	private long mStep = 0;
+
+	@Setup
+	public void setUp() throws IOException {
+		mRoot = ProcFixture.create(0, cores, 0);
+		mCounters = ProcFixture.openStat(mRoot, cores);
+		mCpuMon = new CpuMon(null, 5, mRoot.getPath());
+	}
+
+	/**
+	 * Move the counters on before every sample, outside of the measured
+	 * time, so that the deltas, rates and histories are updated.
+	 */
+	@Setup(Level.Invocation)
+	public void advance() throws IOException {
+		mCounters.write(++mStep);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mCounters.close();
+		mCpuMon.close();
+		ProcFixture.delete(mRoot);
+	}
+
+	@Benchmark
+	public boolean readStats() {
+		return mCpuMon.readStats();
+	}
+}
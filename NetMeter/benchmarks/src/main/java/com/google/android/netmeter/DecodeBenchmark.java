@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding a day of samples from a CompressedHistory, as done when a view
+ * of the archive is first read.
+ *
+ * decodeDay streams all samples through a Decoder and reports samples per
+ * microsecond. The range benchmarks aggregate the whole range of a level
+ * into a new CompressedSeries, the cost of the first read of that level.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+	final static private int DAY = 24 * 3600 / 5;
+
+	private CompressedHistory mArchive;
+	private CompressedHistory.Decoder mDecoder;
+
+	@Setup
+	public void setUp() {
+		mArchive = new CompressedHistory(DAY);
+		int value = 0;
+		for (int i = 0; i < DAY; ++i) {
+			// bursty traffic in bits per second, as in HistoryBenchmark
+			value = value * 1103515245 + 12345;
+			mArchive.add((value >>> 16) % 16 == 0 ? (value >>> 8) & 0xfffff : 0);
+		}
+		mDecoder = mArchive.decoder();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DAY)
+	public long decodeDay() {
+		long sum = 0;
+		mDecoder.seek(mArchive.getFirstSample());
+		while (mDecoder.hasNext()) {
+			sum += mDecoder.next();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public int rangeFinest() {
+		return new CompressedSeries(mArchive, 720, 1).getSize();
+	}
+
+	@Benchmark
+	public int rangeSixHours() {
+		return new CompressedSeries(mArchive, 360, 12).getSize();
+	}
+
+	@Benchmark
+	public int rangeDay() {
+		return new CompressedSeries(mArchive, 720, 24).getSize();
+	}
+}
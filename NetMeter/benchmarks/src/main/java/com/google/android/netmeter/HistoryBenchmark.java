@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recording into and querying a HistoryBuffer, with the rings or with the
+ * compressed archive, filled with a day of samples first.
+ *
+ * The copyRecent benchmarks read a full graph width like GraphView. On the
+ * compressed archive, the warm ones are served from the aggregated entries,
+ * and addCopyRecent adds a sample first, so that it also measures the
+ * incremental decode of every tick.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+	final static private int DAY = 24 * 3600 / 5;
+
+	@Param({ "false", "true" })
+	public boolean compressed;
+
+	private HistoryBuffer mHistory;
+	private int mValue = 0;
+	final private int[] mAvg = new int[720];
+	final private int[] mMin = new int[720];
+	final private int[] mMax = new int[720];
+
+	@Setup
+	public void setUp() {
+		mHistory = compressed ? HistoryBuffer.createCompressed(DAY)
+				: new HistoryBuffer();
+		for (int i = 0; i < DAY; ++i) {
+			mHistory.add(nextValue(), 1);
+		}
+	}
+
+	private int nextValue() {
+		// bursty traffic in bits per second
+		mValue = mValue * 1103515245 + 12345;
+		return (mValue >>> 16) % 16 == 0 ? (mValue >>> 8) & 0xfffff : 0;
+	}
+
+	@Benchmark
+	public void add() {
+		mHistory.add(nextValue(), 1);
+	}
+
+	@Benchmark
+	public void addIdleRun() {
+		// sample covering the longest adaptive interval
+		mHistory.add(0, 12);
+	}
+
+	@Benchmark
+	public int getMaxFinest() {
+		return mHistory.getData(0).getMax(720);
+	}
+
+	@Benchmark
+	public int getMaxDay() {
+		return mHistory.getData(6).getMax(720);
+	}
+
+	@Benchmark
+	public int copyRecentFinest() {
+		return mHistory.getData(0).copyRecent(720, mAvg, mMin, mMax);
+	}
+
+	@Benchmark
+	public int copyRecentDay() {
+		return mHistory.getData(6).copyRecent(720, mAvg, mMin, mMax);
+	}
+
+	@Benchmark
+	public int addCopyRecentFinest() {
+		mHistory.add(nextValue(), 1);
+		return mHistory.getData(0).copyRecent(720, mAvg, mMin, mMax);
+	}
+}
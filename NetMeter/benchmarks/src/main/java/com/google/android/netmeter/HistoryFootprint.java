@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+/**
+ * Reports the memory taken by a HistoryBuffer with the rings and with the
+ * compressed archive, per sample held at full resolution, after recording
+ * a day and a week of several kinds of traffic.
+ *
+ * The rings take the same space whatever is recorded but hold only the
+ * last hour of samples, the compressed archive holds all samples of its
+ * horizon, here the span recorded, in space depending on the traffic.
+ */
+public class HistoryFootprint {
+	final static private int DAY = 24 * 3600 / 5;
+	final static private String[] PATTERNS = { "idle", "bursty", "steady", "ramp" };
+
+	public static void main(String[] args) {
+		System.out.println("pattern  span  backend           bytes   samples  bytes/sample");
+		for (int days = 1; days <= 7; days += 6) {
+			for (int p = 0; p < PATTERNS.length; ++p) {
+				report(PATTERNS[p], days, new HistoryBuffer(), p);
+				report(PATTERNS[p], days,
+						HistoryBuffer.createCompressed(days * DAY), p);
+			}
+		}
+	}
+
+	private static void report(String name, int days, HistoryBuffer history,
+			int pattern) {
+		int value = 0;
+		for (int i = 0; i < days * DAY; ++i) {
+			value = value * 1103515245 + 12345;
+			int noise = (value >>> 16) & 0xfff;
+			switch (pattern) {
+			case 0:
+				history.add(0, 1);
+				break;
+			case 1:
+				history.add((value >>> 16) % 16 == 0 ? (value >>> 8) & 0xfffff : 0, 1);
+				break;
+			case 2:
+				history.add(800000 + noise, 1);
+				break;
+			default:
+				history.add(i % 720 * 1000, 1);
+				break;
+			}
+		}
+		long bytes = history.getMemoryUsage();
+		long samples = history.getSampleSpan();
+		System.out.println(String.format("%-8s %3dd  %-10s %12d %9d %13.2f",
+				name, days, history.getLevel(0) instanceof CompressedSeries
+						? "compressed" : "rings",
+				bytes, samples, (double)bytes / samples));
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Proc trees for the benchmarks, scaled up from the files recorded on a
+ * device in the fixtures/ resources.
+ *
+ * The tree holds self/net/dev with the given number of interfaces, stat
+ * with the given number of cores and a directory with stat (and cmdline
+ * for app_process) per process. Lines are copied from the recordings
+ * round robin, with names and counters made unique, so the tree is the
+ * same on every run.
+ *
+ * Between samples, the benchmarks move the counters of self/net/dev and
+ * stat on through the CounterFile of openNetDev() and openStat(), so that
+ * the collectors see traffic and load like on a live system.
+ */
+class ProcFixture {
+	final static private String RESOURCES = "/fixtures/";
+	// bytes and packets moved on per step in the columns of net/dev,
+	// receive and transmit alike
+	final static private long[] INCREMENTS = { 150000, 120, 0, 0, 0, 0, 0, 1 };
+
+	/**
+	 * Create a tree in a new temporary directory.
+	 */
+	public static File create(int interfaces, int cores, int processes)
+			throws IOException {
+		File root = File.createTempFile("proc", "");
+		if (!root.delete() || !root.mkdir()) {
+			throw new IOException("could not create " + root);
+		}
+		openNetDev(root, interfaces).close();
+		openStat(root, cores).close();
+		writeProcesses(root, processes);
+		return root;
+	}
+
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (int i = 0; i < children.length; ++i) {
+				delete(children[i]);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Write self/net/dev with the given number of interfaces, where each
+	 * step moves the counters of interface i on by (i + 1) times a per
+	 * column increment.
+	 */
+	public static CounterFile openNetDev(File root, int interfaces)
+			throws IOException {
+		List<String> recorded = readLines("net-dev");
+		CounterFile.Builder out = new CounterFile.Builder();
+		out.text(recorded.get(0)).text("\n");
+		out.text(recorded.get(1)).text("\n");
+		for (int i = 0; i < interfaces; ++i) {
+			String line = recorded.get(2 + i % (recorded.size() - 2));
+			int colon = line.indexOf(':');
+			String name = line.substring(0, colon).trim();
+			if (i >= recorded.size() - 2) {
+				name += i;
+			}
+			String[] fields = line.substring(colon + 1).trim().split(" +");
+			out.text(pad(name, 6)).text(":");
+			for (int f = 0; f < fields.length; ++f) {
+				out.counter(Long.parseLong(fields[f]) * (i + 1),
+						INCREMENTS[f % 8] * (i + 1), f == 0 ? 8 : 7).text(" ");
+			}
+			out.text("\n");
+		}
+		return out.open(new File(root, "self/net/dev"));
+	}
+
+	/**
+	 * Write stat with the given number of cores, where each step moves the
+	 * ticks of core c on by c + 1 per column, and those of the aggregate
+	 * line by the sum over the cores.
+	 */
+	public static CounterFile openStat(File root, int cores)
+			throws IOException {
+		List<String> recorded = readLines("stat");
+		String[] fields = recorded.get(1).split(" +");
+		CounterFile.Builder out = new CounterFile.Builder();
+		out.text("cpu ");
+		for (int f = 1; f < fields.length; ++f) {
+			out.text(" ").counter(Long.parseLong(fields[f]) * cores,
+					(long)cores * (cores + 1) / 2, 0);
+		}
+		out.text("\n");
+		for (int core = 0; core < cores; ++core) {
+			out.text("cpu" + core);
+			for (int f = 1; f < fields.length; ++f) {
+				out.text(" ").counter(Long.parseLong(fields[f]), core + 1, 0);
+			}
+			out.text("\n");
+		}
+		for (int i = 2; i < recorded.size(); ++i) {
+			out.text(recorded.get(i)).text("\n");
+		}
+		return out.open(new File(root, "stat"));
+	}
+
+	private static void writeProcesses(File root, int processes)
+			throws IOException {
+		List<String> recorded = readLines("pid-stat");
+		String cmdline = readLines("cmdline").get(0);
+		for (int i = 0; i < processes; ++i) {
+			int pid = 100 + i;
+			String line = recorded.get(i % recorded.size());
+			String[] fields = line.split(" ");
+			fields[0] = Integer.toString(pid);
+			// utime, stime and starttime
+			fields[13] = Long.toString(Long.parseLong(fields[13]) + i);
+			fields[14] = Long.toString(Long.parseLong(fields[14]) + i / 2);
+			fields[21] = Long.toString(Long.parseLong(fields[21]) + i);
+			StringBuilder out = new StringBuilder();
+			for (int f = 0; f < fields.length; ++f) {
+				if (f > 0) out.append(' ');
+				out.append(fields[f]);
+			}
+			File dir = new File(root, Integer.toString(pid));
+			write(new File(dir, "stat"), out.append('\n').toString());
+			if (fields[1].equals("(app_process)")) {
+				write(new File(dir, "cmdline"), cmdline + "." + i + "\0");
+			}
+		}
+	}
+
+	private static List<String> readLines(String name) throws IOException {
+		InputStream in = ProcFixture.class.getResourceAsStream(RESOURCES + name);
+		if (in == null) {
+			throw new IOException("missing fixture " + name);
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+		List<String> lines = new ArrayList<String>();
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line.replace("\0", ""));
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static String pad(String text, int width) {
+		StringBuilder out = new StringBuilder();
+		for (int i = text.length(); i < width; ++i) {
+			out.append(' ');
+		}
+		return out.append(text).toString();
+	}
+
+	/**
+	 * Write a file in place, truncating it if it exists.
+	 */
+	private static void write(File file, String text) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records timestamped snapshots of the proc files read by the collectors
+ * into an archive, which ProcReplay plays back into a directory tree.
+ *
+ * A snapshot covers self/net/dev and stat as read by StatsProcessor and
+ * CpuMon, plus [pid]/stat of every process and [pid]/cmdline of the
+ * app_process tasks as read by Top. Only the files which changed since the
+ * previous snapshot are written, and the archive is gzip compressed, so a
+ * snapshot of an idle system takes little more than the stat files of the
+ * processes which ran.
+ *
+ * Archive format, in DataOutputStream encoding: MAGIC and VERSION, then
+ * per snapshot the SNAPSHOT tag and the time in milliseconds followed by
+ * records, each a PUT tag, path relative to the proc root, length and
+ * contents, or a REMOVE tag and path, and a closing END tag. The archive
+ * is terminated by another END tag.
+ */
+class ProcRecorder {
+	final static int MAGIC = 0x4e4d5052; // "NMPR"
+	final static int VERSION = 1;
+	final static int END = 0;
+	final static int SNAPSHOT = 1;
+	final static int PUT = 1;
+	final static int REMOVE = 2;
+
+	final static String NET_DEV = "self/net/dev";
+	final static String STAT = "stat";
+	final static private byte[] APP_PROCESS = " (app_process) ".getBytes();
+
+	// proc root with a trailing separator
+	final private String mProcDir;
+	final private ProcFile mNetDev;
+	final private ProcFile mStat;
+	final private ProcFile mReader = new ProcFile();
+	final private DataOutputStream mOut;
+
+	// contents of the files in the last snapshot, by relative path
+	final private HashMap<String, byte[]> mFiles = new HashMap<String, byte[]>();
+	final private HashSet<String> mSeen = new HashSet<String>();
+	private long mBytes = 0;
+
+	/**
+	 * @param proc_root root of the proc file system to record
+	 * @param out archive, closed by close()
+	 */
+	ProcRecorder(String proc_root, OutputStream out) throws IOException {
+		mProcDir = proc_root + "/";
+		mNetDev = new ProcFile(mProcDir + NET_DEV);
+		mStat = new ProcFile(mProcDir + STAT);
+		mOut = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(out, 65536)));
+		mOut.writeInt(MAGIC);
+		mOut.writeShort(VERSION);
+	}
+
+	/**
+	 * Capture a snapshot of the proc files.
+	 *
+	 * @param time_millis time of the snapshot, e.g. elapsed realtime
+	 * @return number of files written because they changed
+	 */
+	public int record(long time_millis) throws IOException {
+		mSeen.clear();
+		mOut.writeByte(SNAPSHOT);
+		mOut.writeLong(time_millis);
+		int changed = 0;
+		if (readFixed(mNetDev) && capture(NET_DEV, mNetDev)) ++changed;
+		if (readFixed(mStat) && capture(STAT, mStat)) ++changed;
+		String[] files = new File(mProcDir).list();
+		if (files != null) {
+			for (int i = 0; i < files.length; ++i) {
+				if (ProcStatScanner.parsePid(files[i]) < 0) continue;
+				if (!mReader.read(mProcDir + files[i] + "/stat")) continue;
+				boolean app_process = contains(APP_PROCESS);
+				if (capture(files[i] + "/stat", mReader)) ++changed;
+				if (app_process && mReader.read(mProcDir + files[i] + "/cmdline")
+						&& capture(files[i] + "/cmdline", mReader)) ++changed;
+			}
+		}
+		Iterator<Map.Entry<String, byte[]>> it = mFiles.entrySet().iterator();
+		while (it.hasNext()) {
+			String path = it.next().getKey();
+			if (mSeen.contains(path)) continue;
+			mOut.writeByte(REMOVE);
+			mOut.writeUTF(path);
+			it.remove();
+			++changed;
+		}
+		mOut.writeByte(END);
+		return changed;
+	}
+
+	/**
+	 * @return uncompressed size of the file contents written so far
+	 */
+	public long getBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * Terminate and close the archive.
+	 */
+	public void close() throws IOException {
+		mNetDev.close();
+		mStat.close();
+		mOut.writeByte(END);
+		mOut.close();
+	}
+
+	private boolean readFixed(ProcFile file) {
+		try {
+			file.read();
+		} catch (IOException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the contents of the last read of file under the given path,
+	 * unless they are unchanged since the previous snapshot.
+	 *
+	 * @return true if the contents were written
+	 */
+	private boolean capture(String path, ProcFile file) throws IOException {
+		byte[] data = file.getData();
+		int length = file.getLength();
+		mSeen.add(path);
+		byte[] previous = mFiles.get(path);
+		if (previous != null && previous.length == length) {
+			int i = 0;
+			while (i < length && previous[i] == data[i]) ++i;
+			if (i == length) return false;
+		}
+		byte[] contents = new byte[length];
+		System.arraycopy(data, 0, contents, 0, length);
+		mFiles.put(path, contents);
+		mOut.writeByte(PUT);
+		mOut.writeUTF(path);
+		mOut.writeInt(length);
+		mOut.write(contents);
+		mBytes += length;
+		return true;
+	}
+
+	/**
+	 * @return whether the contents of the last per-process read contain
+	 * 	the given bytes
+	 */
+	private boolean contains(byte[] pattern) {
+		byte[] data = mReader.getData();
+		int end = mReader.getLength() - pattern.length;
+		for (int i = 0; i <= end; ++i) {
+			int j = 0;
+			while (j < pattern.length && data[i + j] == pattern[j]) ++j;
+			if (j == pattern.length) return true;
+		}
+		return false;
+	}
+}
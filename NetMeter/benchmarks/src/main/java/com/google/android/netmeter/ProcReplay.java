@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Plays back an archive written by ProcRecorder into a directory, which the
+ * collectors are then pointed at as their proc root.
+ *
+ * Each call to next() applies the changes of one snapshot to the tree.
+ * Files are rewritten in place rather than replaced, so that the handles
+ * which the collectors keep open on self/net/dev and stat see the new
+ * contents, like they would on /proc. Process directories are removed
+ * with their last file.
+ */
+class ProcReplay {
+	final private DataInputStream mIn;
+	final private File mRoot;
+	private byte[] mBuffer = new byte[4096];
+	private long mTime = 0;
+	private int mChanged = 0;
+	private boolean mEnded = false;
+
+	/**
+	 * @param in archive, closed by close()
+	 * @param root directory to play back into, which should be empty
+	 */
+	ProcReplay(InputStream in, File root) throws IOException {
+		mRoot = root;
+		mIn = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(in, 65536)));
+		if (mIn.readInt() != ProcRecorder.MAGIC) {
+			throw new IOException("not a proc archive");
+		}
+		int version = mIn.readShort();
+		if (version != ProcRecorder.VERSION) {
+			throw new IOException("unsupported archive version " + version);
+		}
+	}
+
+	/**
+	 * Apply the next snapshot to the tree.
+	 *
+	 * @return false at the end of the archive
+	 */
+	public boolean next() throws IOException {
+		if (mEnded) return false;
+		if (mIn.readByte() != ProcRecorder.SNAPSHOT) {
+			mEnded = true;
+			return false;
+		}
+		mTime = mIn.readLong();
+		mChanged = 0;
+		int op;
+		while ((op = mIn.readByte()) != ProcRecorder.END) {
+			File file = new File(mRoot, mIn.readUTF());
+			if (op == ProcRecorder.PUT) {
+				int length = mIn.readInt();
+				if (length > mBuffer.length) {
+					mBuffer = new byte[Math.max(mBuffer.length * 2, length)];
+				}
+				mIn.readFully(mBuffer, 0, length);
+				write(file, length);
+			} else if (op == ProcRecorder.REMOVE) {
+				file.delete();
+				File dir = file.getParentFile();
+				String[] rest = dir.list();
+				if (rest != null && rest.length == 0 && !dir.equals(mRoot)) {
+					dir.delete();
+				}
+			} else {
+				throw new IOException("corrupt proc archive");
+			}
+			++mChanged;
+		}
+		return true;
+	}
+
+	/**
+	 * @return time of the current snapshot in milliseconds
+	 */
+	public long getTime() {
+		return mTime;
+	}
+
+	/**
+	 * @return number of files changed by the current snapshot
+	 */
+	public int getChanged() {
+		return mChanged;
+	}
+
+	public void close() throws IOException {
+		mIn.close();
+	}
+
+	private void write(File file, int length) throws IOException {
+		FileOutputStream out;
+		try {
+			out = new FileOutputStream(file);
+		} catch (IOException e) {
+			file.getParentFile().mkdirs();
+			out = new FileOutputStream(file);
+		}
+		try {
+			out.write(mBuffer, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+}
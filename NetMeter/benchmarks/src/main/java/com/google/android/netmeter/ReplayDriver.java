@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records proc archives and replays them through the collectors as fast as
+ * possible.
+ *
+ * record writes a snapshot of a proc root every interval. replay plays an
+ * archive back into a temporary directory and samples it with
+ * StatsProcessor, CpuMon and Top the way the collector thread of
+ * NetMeterService does, counting the ticks between samples from the
+ * recorded times. With -adaptive, the snapshots are sampled on the
+ * schedule picked by AdaptiveScheduler, as in the background, and the
+ * others only update the tree. The time spent in the collectors is
+ * reported per sample and extrapolated to a day.
+ */
+public class ReplayDriver {
+	// as in NetMeterService
+	final static private int SAMPLING_INTERVAL = 5;
+	final static private int MAX_INTERVAL_TICKS = 12;
+	final static private long IDLE_RATE = 8000;
+	final static private float IDLE_CPU = 10.0f;
+	final static private int MAX_GAP_TICKS = 24 * 3600 / SAMPLING_INTERVAL;
+
+	final static private String USAGE =
+		"usage: ReplayDriver record <archive> <samples> [interval_ms] [proc_root]\n"
+		+ "       ReplayDriver replay <archive> [-adaptive] [-top k] [-parallelism n]";
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length >= 3 && args[0].equals("record")) {
+			record(new File(args[1]), Integer.parseInt(args[2]),
+					args.length > 3 ? Long.parseLong(args[3]) : SAMPLING_INTERVAL * 1000,
+					args.length > 4 ? args[4] : ProcFile.PROC_ROOT);
+		} else if (args.length >= 2 && args[0].equals("replay")) {
+			boolean adaptive = false;
+			int k = 10;
+			int parallelism = 1;
+			for (int i = 2; i < args.length; ++i) {
+				if (args[i].equals("-adaptive")) {
+					adaptive = true;
+				} else if (args[i].equals("-top") && i + 1 < args.length) {
+					k = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-parallelism") && i + 1 < args.length) {
+					parallelism = Integer.parseInt(args[++i]);
+				} else {
+					usage();
+				}
+			}
+			replay(new File(args[1]), adaptive, k, parallelism);
+		} else {
+			usage();
+		}
+	}
+
+	private static void usage() {
+		System.err.println(USAGE);
+		System.exit(2);
+	}
+
+	private static void record(File archive, int samples, long interval_ms,
+			String proc_root) throws IOException, InterruptedException {
+		ProcRecorder recorder = new ProcRecorder(proc_root,
+				new FileOutputStream(archive));
+		long changed = 0;
+		long next = System.currentTimeMillis();
+		try {
+			for (int i = 0; i < samples; ++i) {
+				long now = System.currentTimeMillis();
+				if (now < next) {
+					Thread.sleep(next - now);
+				}
+				changed += recorder.record(System.currentTimeMillis());
+				next += interval_ms;
+			}
+		} finally {
+			recorder.close();
+		}
+		System.out.println(samples + " snapshots, " + changed + " files changed, "
+				+ recorder.getBytes() / 1024 + " KiB of contents in "
+				+ archive.length() / 1024 + " KiB");
+	}
+
+	private static void replay(File archive, boolean adaptive, int k,
+			int parallelism) throws IOException {
+		File root = File.createTempFile("replay", "");
+		if (!root.delete() || !root.mkdir()) {
+			throw new IOException("could not create " + root);
+		}
+		ProcReplay replay = new ProcReplay(new FileInputStream(archive), root);
+		try {
+			if (!replay.next()) {
+				System.out.println("empty archive");
+				return;
+			}
+			run(replay, root.getPath(), adaptive, k, parallelism);
+		} finally {
+			replay.close();
+			ProcFixture.delete(root);
+		}
+	}
+
+	private static void run(ProcReplay replay, String proc_root, boolean adaptive,
+			int k, int parallelism) throws IOException {
+		long interval = SAMPLING_INTERVAL * 1000;
+		// initial sample, like NetMeterService.onCreate()
+		StatsProcessor stats = new StatsProcessor(null, SAMPLING_INTERVAL,
+				null, null, null, proc_root);
+		CpuMon cpu = new CpuMon(null, SAMPLING_INTERVAL, proc_root);
+		Top top = new Top(1024, parallelism, proc_root);
+		stats.processIfStats(replay.getTime() * 1000000);
+		stats.reset();
+		AdaptiveScheduler scheduler =
+			new AdaptiveScheduler(adaptive ? MAX_INTERVAL_TICKS : 1);
+
+		long first_time = replay.getTime();
+		long last_time = first_time;
+		long end_time = first_time;
+		int snapshots = 1;
+		long apply_nanos = 0;
+		long net_nanos = 0;
+		long cpu_nanos = 0;
+		long top_nanos = 0;
+		long start = System.nanoTime();
+		while (true) {
+			long t0 = System.nanoTime();
+			boolean more = replay.next();
+			apply_nanos += System.nanoTime() - t0;
+			if (!more) break;
+			++snapshots;
+			long time = replay.getTime();
+			end_time = time;
+			if (adaptive && time - last_time
+					< scheduler.getTicks() * interval - interval / 2) {
+				continue;
+			}
+			int ticks = (int) Math.min(MAX_GAP_TICKS,
+					Math.max(1, (time - last_time + interval / 2) / interval));
+			last_time = time;
+
+			long t1 = System.nanoTime();
+			stats.processIfStats(time * 1000000, ticks);
+			long t2 = System.nanoTime();
+			cpu.readStats(ticks);
+			long t3 = System.nanoTime();
+			if (k > 0) top.getTopK(k);
+			long t4 = System.nanoTime();
+			net_nanos += t2 - t1;
+			cpu_nanos += t3 - t2;
+			top_nanos += t4 - t3;
+
+			boolean active = stats.getMaxRate() > IDLE_RATE
+					|| cpu.getBusy() > IDLE_CPU;
+			scheduler.next(ticks, active);
+		}
+		long total = System.nanoTime() - start;
+		stats.close();
+		cpu.close();
+		top.shutdown();
+
+		long samples = Math.max(1, scheduler.getWakeups());
+		long collect = net_nanos + cpu_nanos + top_nanos;
+		double span = (end_time - first_time) / 1000.0;
+		System.out.println(snapshots + " snapshots over " + Math.round(span) + "s, "
+				+ scheduler.getWakeups() + " samples ("
+				+ scheduler.getFixedWakeups() + " at the base interval)");
+		System.out.println("per sample: net " + net_nanos / samples / 1000
+				+ "us, cpu " + cpu_nanos / samples / 1000
+				+ "us, top " + top_nanos / samples / 1000 + "us");
+		System.out.println("collectors " + collect / 1000000 + "ms, tree updates "
+				+ apply_nanos / 1000000 + "ms, total " + total / 1000000 + "ms");
+		if (span > 0) {
+			System.out.println("per day of samples: collectors "
+					+ Math.round(collect / 1000000.0 * 86400 / span) + "ms, "
+					+ Math.round(scheduler.getWakeups() * 86400 / span) + " wakeups");
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A refresh of the process list by Top, serial or split across a pool,
+ * against a tree with the given number of processes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopBenchmark {
+	@Param({ "200", "20000" })
+	public int processes;
+
+	@Param({ "1", "4" })
+	public int parallelism;
+
+	private File mRoot;
+	private Top mTop;
+
+	@Setup
+	public void setUp() throws IOException {
+		mRoot = ProcFixture.create(0, 1, processes);
+		mTop = new Top(1024, parallelism, mRoot.getPath());
+	}
+
+	@TearDown
+	public void tearDown() {
+		mTop.shutdown();
+		ProcFixture.delete(mRoot);
+	}
+
+	@Benchmark
+	public Vector<Top.Task> getTopN() {
+		return mTop.getTopN();
+	}
+
+	@Benchmark
+	public Vector<Top.Task> getTopK() {
+		return mTop.getTopK(10);
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+/**
+ * Chooses the time until the next sample.
+ *
+ * Intervals are whole multiples of the base sampling interval, called ticks,
+ * so that the history stays aligned to its base resolution. While there is
+ * activity, or while the display is watched, every tick is sampled. Each
+ * idle sample doubles the interval up to max_ticks, and the first active
+ * sample drops it back to a single tick.
+ *
+ * The scheduler also counts its wakeups against the number of ticks covered,
+ * which is the number of wakeups sampling at the base interval would have
+ * taken.
+ */
+class AdaptiveScheduler {
+	final private int mMaxTicks;
+	private int mTicks = 1;
+	private boolean mInteractive = false;
+
+	private long mWakeups = 0;
+	private long mElapsedTicks = 0;
+
+	/**
+	 * @param max_ticks longest interval in base intervals, 1 for fixed
+	 * 	rate sampling
+	 */
+	AdaptiveScheduler(int max_ticks) {
+		mMaxTicks = Math.max(1, max_ticks);
+	}
+
+	/**
+	 * Sample every tick while the display is visible.
+	 */
+	public void setInteractive(boolean interactive) {
+		mInteractive = interactive;
+		if (interactive) {
+			mTicks = 1;
+		}
+	}
+
+	/**
+	 * Account for a sample covering the given number of ticks and pick the
+	 * interval until the next one.
+	 *
+	 * @param ticks number of base intervals since the previous sample
+	 * @param active whether any counter showed activity in this sample
+	 * @return ticks until the next sample
+	 */
+	public int next(int ticks, boolean active) {
+		++mWakeups;
+		mElapsedTicks += ticks;
+		if (active || mInteractive) {
+			mTicks = 1;
+		} else {
+			mTicks = Math.min(mTicks * 2, mMaxTicks);
+		}
+		return mTicks;
+	}
+
+	/**
+	 * @return ticks until the next sample, as last chosen by next()
+	 */
+	public int getTicks() {
+		return mTicks;
+	}
+
+	/**
+	 * @return number of samples taken
+	 */
+	public long getWakeups() {
+		return mWakeups;
+	}
+
+	/**
+	 * @return number of samples a fixed base interval would have taken
+	 * 	over the same time
+	 */
+	public long getFixedWakeups() {
+		return mElapsedTicks;
+	}
+}
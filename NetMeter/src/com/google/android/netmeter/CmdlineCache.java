@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+/**
+ * Bounded cache of process display names derived from /proc/[pid]/cmdline.
+ *
+ * Entries are keyed by pid and process start time, so that a pid which has
+ * been reused by a new process is not mistaken for the old one. Lookups mark
+ * an entry as used in the current scan generation and sweep() evicts the
+ * entries of all processes which were not seen, i.e. have exited.
+ *
+ * The table uses open addressing with linear probing on primitive arrays.
+ * Once the cache holds its maximum number of entries, further names are
+ * simply not cached until processes exit.
+ */
+class CmdlineCache {
+	final private int mMaxEntries;
+	final private int[] mPids;
+	final private long[] mStartTimes;
+	final private String[] mNames;
+	final private int[] mLastSeen;
+	final private int mMask;
+	private int mSize = 0;
+	private int mGeneration = 1;
+
+	private long mHits = 0;
+	private long mMisses = 0;
+	private long mEvictions = 0;
+
+	/**
+	 * @param max_entries maximum number of cached names
+	 */
+	CmdlineCache(int max_entries) {
+		int capacity = 1;
+		while (capacity < max_entries * 2) {
+			capacity <<= 1;
+		}
+		mMaxEntries = max_entries;
+		mMask = capacity - 1;
+		mPids = new int[capacity];
+		mStartTimes = new long[capacity];
+		mNames = new String[capacity];
+		mLastSeen = new int[capacity];
+	}
+
+	/**
+	 * @return cached name of the process or null if not cached
+	 */
+	public String get(int pid, long start_time) {
+		for (int slot = slot(pid); mNames[slot] != null; slot = (slot + 1) & mMask) {
+			if (mPids[slot] == pid) {
+				if (mStartTimes[slot] != start_time) {
+					// pid has been reused, the old entry is stale
+					remove(slot);
+					++mEvictions;
+					break;
+				}
+				mLastSeen[slot] = mGeneration;
+				++mHits;
+				return mNames[slot];
+			}
+		}
+		++mMisses;
+		return null;
+	}
+
+	/**
+	 * Cache the name of a process, which must not already be cached.
+	 */
+	public void put(int pid, long start_time, String name) {
+		if (mSize >= mMaxEntries) return;
+		int slot = slot(pid);
+		while (mNames[slot] != null) {
+			slot = (slot + 1) & mMask;
+		}
+		mPids[slot] = pid;
+		mStartTimes[slot] = start_time;
+		mNames[slot] = name;
+		mLastSeen[slot] = mGeneration;
+		++mSize;
+	}
+
+	/**
+	 * Evict all entries which have not been looked up or added since the
+	 * previous sweep and start a new generation.
+	 */
+	public void sweep() {
+		int slot = 0;
+		while (slot <= mMask) {
+			if (mNames[slot] != null && mLastSeen[slot] != mGeneration) {
+				remove(slot);
+				++mEvictions;
+				// re-examine the slot, an entry may have been shifted into it
+			} else {
+				++slot;
+			}
+		}
+		++mGeneration;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public long getHits() {
+		return mHits;
+	}
+
+	public long getMisses() {
+		return mMisses;
+	}
+
+	public long getEvictions() {
+		return mEvictions;
+	}
+
+	/**
+	 * Remove the entry at the given slot, shifting back later entries of
+	 * the probe sequence so that no tombstones are needed.
+	 */
+	private void remove(int slot) {
+		int hole = slot;
+		int next = (slot + 1) & mMask;
+		while (mNames[next] != null) {
+			int home = slot(mPids[next]);
+			// move the entry if its home slot is not cyclically in (hole, next]
+			if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+				mPids[hole] = mPids[next];
+				mStartTimes[hole] = mStartTimes[next];
+				mNames[hole] = mNames[next];
+				mLastSeen[hole] = mLastSeen[next];
+				hole = next;
+			}
+			next = (next + 1) & mMask;
+		}
+		mNames[hole] = null;
+		--mSize;
+	}
+
+	private int slot(int pid) {
+		int h = pid * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & mMask;
+	}
+}
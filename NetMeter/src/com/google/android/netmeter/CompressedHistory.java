@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only archive of samples, compressed with delta-of-delta encoding.
+ *
+ * Samples are grouped into blocks of BLOCK_SAMPLES. A block starts with the
+ * first value in 32 bits, every further value is encoded as the difference
+ * between its delta and the previous delta, packed into a bit stream with
+ * a variable length prefix in the style of the Gorilla time series format:
+ *
+ *   0                  delta unchanged
+ *   10   + 7 bits      in [-64, 63]
+ *   110  + 9 bits      in [-256, 255]
+ *   1110 + 12 bits     in [-2048, 2047]
+ *   1111 + 35 bits     anything else
+ *
+ * Idle series and runs of a repeated value, as added for samples covering
+ * several ticks, take 1 bit per sample. The block being written is kept at
+ * its worst case size and trimmed once it is full. Once the archive spans
+ * more than its horizon, the oldest block is dropped.
+ *
+ * Bits are packed starting from the least significant bit of each word,
+ * prefixes are written in the order shown.
+ *
+ * Samples are numbered from the first one ever added. The archive is
+ * written by a single thread and may be decoded by others. The bits of a
+ * sample never change once written, and the sample count seen by readers
+ * is published through a volatile after the bits, so everything below it
+ * can be decoded safely, as long as its block is still in the ring. The
+ * number of the oldest block is published before its slot is reused, and
+ * a Decoder checks it after the fact through isValid().
+ */
+class CompressedHistory {
+	final static public int BLOCK_SAMPLES = 1024;
+	final static private int MAX_BLOCK_BITS = 32 + (BLOCK_SAMPLES - 1) * (4 + 35);
+
+	// ring of blocks, block number n is kept at n % mBlocks.length
+	final private AtomicReferenceArray<long[]> mBlocks;
+	private volatile long mFirstBlock = 0;
+	// samples encoded, and the count published to readers
+	private long mSampleCount = 0;
+	private volatile long mPublished = 0;
+
+	// encoder state of the block being written
+	private long[] mCurrent;
+	private int mBitPos = 0;
+	private int mPrevValue;
+	private long mPrevDelta;
+
+	/**
+	 * @param horizon number of most recent samples to keep at least
+	 */
+	CompressedHistory(int horizon) {
+		mBlocks = new AtomicReferenceArray<long[]>(
+				(horizon + BLOCK_SAMPLES - 1) / BLOCK_SAMPLES + 1);
+		mCurrent = new long[(MAX_BLOCK_BITS + 63) / 64];
+	}
+
+	public void add(int value) {
+		encode(value);
+		mPublished = mSampleCount;
+	}
+
+	private void encode(int value) {
+		int offset = (int)(mSampleCount % BLOCK_SAMPLES);
+		if (offset == 0) {
+			startBlock();
+			write(value & 0xffffffffL, 32);
+		} else {
+			long delta = (long)value - mPrevValue;
+			long dod = delta - mPrevDelta;
+			if (dod == 0) {
+				write(0, 1);
+			} else if (dod >= -64 && dod < 64) {
+				write(0x1, 2);
+				write(dod, 7);
+			} else if (dod >= -256 && dod < 256) {
+				write(0x3, 3);
+				write(dod, 9);
+			} else if (dod >= -2048 && dod < 2048) {
+				write(0x7, 4);
+				write(dod, 12);
+			} else {
+				write(0xf, 4);
+				write(dod, 35);
+			}
+			mPrevDelta = delta;
+		}
+		mPrevValue = value;
+		++mSampleCount;
+		if (offset == BLOCK_SAMPLES - 1) {
+			sealBlock();
+		}
+	}
+
+	/**
+	 * Add a value which held for the given number of samples.
+	 *
+	 * Once the delta has dropped to 0, every further sample of the run is a
+	 * single 0 bit, so the rest of the run up to the end of the block is
+	 * encoded in one step by advancing the bit position over the zeroed
+	 * block.
+	 */
+	public void add(int value, int count) {
+		while (count > 0) {
+			int offset = (int)(mSampleCount % BLOCK_SAMPLES);
+			if (offset == 0 || value != mPrevValue || mPrevDelta != 0) {
+				encode(value);
+				--count;
+				continue;
+			}
+			int run = Math.min(count, BLOCK_SAMPLES - offset);
+			mBitPos += run;
+			mSampleCount += run;
+			count -= run;
+			if (offset + run == BLOCK_SAMPLES) {
+				sealBlock();
+			}
+		}
+		mPublished = mSampleCount;
+	}
+
+	/**
+	 * @return number of samples added since creation
+	 */
+	public long getSampleCount() {
+		return mPublished;
+	}
+
+	/**
+	 * @return number of the oldest sample still available
+	 */
+	public long getFirstSample() {
+		return mFirstBlock * BLOCK_SAMPLES;
+	}
+
+	/**
+	 * @return bytes taken by the encoded samples, including the unused
+	 * 	part of the block being written
+	 */
+	public long getMemoryUsage() {
+		long bytes = 0;
+		for (int i = 0; i < mBlocks.length(); ++i) {
+			long[] block = mBlocks.get(i);
+			if (block != null) {
+				bytes += block.length * 8;
+			}
+		}
+		return bytes;
+	}
+
+	public Decoder decoder() {
+		return new Decoder();
+	}
+
+	private void startBlock() {
+		long block = mSampleCount / BLOCK_SAMPLES;
+		if (block - mFirstBlock >= mBlocks.length()) {
+			// retire the oldest block before its slot is reused
+			mFirstBlock = mFirstBlock + 1;
+		}
+		mBitPos = 0;
+		mPrevDelta = 0;
+		Arrays.fill(mCurrent, 0);
+		mBlocks.set((int)(block % mBlocks.length()), mCurrent);
+	}
+
+	/**
+	 * Replace the full block by a copy trimmed to its encoded length and
+	 * keep the worst case sized array for the next block.
+	 */
+	private void sealBlock() {
+		long block = (mSampleCount - 1) / BLOCK_SAMPLES;
+		long[] trimmed = new long[(mBitPos + 63) / 64];
+		System.arraycopy(mCurrent, 0, trimmed, 0, trimmed.length);
+		mBlocks.set((int)(block % mBlocks.length()), trimmed);
+		mCurrent = new long[mCurrent.length];
+	}
+
+	private void write(long bits, int count) {
+		bits &= (1L << count) - 1;
+		int word = mBitPos >>> 6;
+		int shift = mBitPos & 63;
+		mCurrent[word] |= bits << shift;
+		if (shift + count > 64) {
+			mCurrent[word + 1] |= bits >>> (64 - shift);
+		}
+		mBitPos += count;
+	}
+
+	/**
+	 * Streaming reader of a range of samples, moving forward from the
+	 * position given to seek(). Decoding state is reused across seeks, and
+	 * a seek to the position where decoding stopped continues from there
+	 * without going back to the start of the block.
+	 */
+	class Decoder {
+		private long[] mData;
+		private long mSample;
+		private long mEnd;
+		// oldest block fetched since the last seek, or -1
+		private long mFetched = -1;
+		private int mPos;
+		private int mValue;
+		private long mDelta;
+
+		/**
+		 * Position the decoder at the given sample, which is clamped to the
+		 * samples available.
+		 *
+		 * @return number of the sample next() will return
+		 */
+		public long seek(long sample) {
+			boolean valid = isValid();
+			mEnd = mPublished;
+			mFetched = -1;
+			if (valid && mData != null && sample == mSample
+					&& sample >= getFirstSample()) {
+				// carry on from where the last run stopped
+				return mSample;
+			}
+			long first = mFirstBlock * BLOCK_SAMPLES;
+			if (sample < first) {
+				sample = first;
+			}
+			mSample = sample - sample % BLOCK_SAMPLES;
+			mData = null;
+			while (mSample < sample && hasNext()) {
+				next();
+			}
+			return mSample;
+		}
+
+		public boolean hasNext() {
+			return mSample < mEnd;
+		}
+
+		public int next() {
+			int offset = (int)(mSample % BLOCK_SAMPLES);
+			if (offset == 0 || mData == null) {
+				long block = mSample / BLOCK_SAMPLES;
+				mData = mBlocks.get((int)(block % mBlocks.length()));
+				if (mFetched < 0) {
+					mFetched = block;
+				}
+				mPos = 0;
+				mDelta = 0;
+				mValue = (int)read(32);
+			} else if (read(1) != 0) {
+				long dod;
+				if (read(1) == 0) {
+					dod = signed(read(7), 7);
+				} else if (read(1) == 0) {
+					dod = signed(read(9), 9);
+				} else if (read(1) == 0) {
+					dod = signed(read(12), 12);
+				} else {
+					dod = signed(read(35), 35);
+				}
+				mDelta += dod;
+				mValue = (int)(mValue + mDelta);
+			} else {
+				mValue = (int)(mValue + mDelta);
+			}
+			++mSample;
+			return mValue;
+		}
+
+		/**
+		 * @return false if a block decoded since the last seek was
+		 * 	retired while it was read, in which case the values returned
+		 * 	may be garbage and the range has to be decoded again
+		 */
+		public boolean isValid() {
+			return mFetched < 0 || mFetched >= mFirstBlock;
+		}
+
+		private long read(int count) {
+			int word = mPos >>> 6;
+			int shift = mPos & 63;
+			mPos += count;
+			if (mData == null || word >= mData.length) return 0;
+			long bits = mData[word] >>> shift;
+			if (shift + count > 64 && word + 1 < mData.length) {
+				bits |= mData[word + 1] << (64 - shift);
+			}
+			return bits & ((1L << count) - 1);
+		}
+
+		private long signed(long bits, int count) {
+			return (bits << (64 - count)) >> (64 - count);
+		}
+	}
+}
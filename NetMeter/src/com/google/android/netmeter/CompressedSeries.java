@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+/**
+ * One resolution of a CompressedHistory, aggregated on demand.
+ *
+ * The samples of the archive are streamed through a decoder and aggregated
+ * into min, max, sum and count per entry. Entries are aligned to multiples
+ * of the sample rate, and only complete entries are shown, like in the
+ * rings of HistoryBuffer. When the archive has grown since the last access,
+ * only the entries completed since are decoded and appended, and the
+ * oldest ones shifted out; the whole range of capacity * sample rate
+ * samples is only decoded on the first access or after a gap longer than
+ * the range. The arrays are allocated once.
+ *
+ * Readers on different threads, like the display and the exporter, are
+ * serialized, since they share the aggregated arrays. The archive may be
+ * appended to during a decode; samples below its published count are
+ * final, but a block may be retired and its slot reused while it is read.
+ * Entries are only kept once the decoder has confirmed that this did not
+ * happen, otherwise the range is dropped and decoded again.
+ */
+class CompressedSeries implements HistorySeries {
+	final private CompressedHistory mArchive;
+	final private CompressedHistory.Decoder mDecoder;
+	final private int mCapacity;
+	final private int mSampleRate;
+
+	// entries in chronological order, the most recent at mSize - 1
+	final private int[] mMin;
+	final private int[] mMax;
+	final private long[] mSum;
+	private int mSize = 0;
+	// sample numbers of the first entry and one past the last entry
+	private long mStart = 0;
+	private long mEnd = -1;
+
+	CompressedSeries(CompressedHistory archive, int capacity, int sample_rate) {
+		mArchive = archive;
+		mDecoder = archive.decoder();
+		mCapacity = capacity;
+		mSampleRate = sample_rate;
+		mMin = new int[capacity];
+		mMax = new int[capacity];
+		mSum = new long[capacity];
+	}
+
+	public synchronized int getSize() {
+		decode();
+		return mSize;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	public int getSampleRate() {
+		return mSampleRate;
+	}
+
+	public int getVersion() {
+		return (int)(mArchive.getSampleCount() / mSampleRate);
+	}
+
+	public synchronized int lookBack(int steps) {
+		decode();
+		if (mSize == 0) return 0;
+		return (int)(mSum[index(steps)] / mSampleRate);
+	}
+
+	public synchronized int lookBackMin(int steps) {
+		decode();
+		if (mSize == 0) return 0;
+		return mMin[index(steps)];
+	}
+
+	public synchronized int lookBackMax(int steps) {
+		decode();
+		if (mSize == 0) return 0;
+		return mMax[index(steps)];
+	}
+
+	public synchronized int getMax(int window) {
+		decode();
+		if (window > mSize) {
+			window = mSize;
+		}
+		int max = 0;
+		for (int i = mSize - window; i < mSize; ++i) {
+			max = Math.max(max, mMax[i]);
+		}
+		return max;
+	}
+
+	public synchronized int copyRecent(int count, int[] avg, int[] min,
+			int[] max) {
+		decode();
+		count = Math.min(count, mSize);
+		int start = mSize - count;
+		for (int i = 0; i < count; ++i) {
+			avg[i] = (int)(mSum[start + i] / mSampleRate);
+		}
+		if (min != null) {
+			System.arraycopy(mMin, start, min, 0, count);
+		}
+		if (max != null) {
+			System.arraycopy(mMax, start, max, 0, count);
+		}
+		return count;
+	}
+
+	public long getMemoryUsage() {
+		// min and max as int, sum as long
+		return mCapacity * 16L;
+	}
+
+	private int index(int steps) {
+		return Math.max(0, mSize - 1 - steps);
+	}
+
+	/**
+	 * Aggregate the complete entries in the retained part of the archive
+	 * which have been completed since the last call.
+	 */
+	private void decode() {
+		while (!decodeRange()) {
+			// a block was retired under the decoder, start over
+			mSize = 0;
+			mEnd = -1;
+		}
+	}
+
+	/**
+	 * @return false if the entries decoded may be garbage
+	 */
+	private boolean decodeRange() {
+		long count = mArchive.getSampleCount();
+		long end = count - count % mSampleRate;
+		if (end == mEnd) return true;
+		long start = Math.max(end - (long)mCapacity * mSampleRate,
+				mArchive.getFirstSample());
+		// round up to the start of an entry
+		start = (start + mSampleRate - 1) / mSampleRate * mSampleRate;
+		if (mEnd < 0 || mEnd < start || mEnd > end) {
+			// first access or nothing left to keep
+			mSize = 0;
+			mStart = start;
+			mEnd = start;
+		} else if (start > mStart) {
+			int drop = (int)((start - mStart) / mSampleRate);
+			mSize -= drop;
+			System.arraycopy(mMin, drop, mMin, 0, mSize);
+			System.arraycopy(mMax, drop, mMax, 0, mSize);
+			System.arraycopy(mSum, drop, mSum, 0, mSize);
+			mStart = start;
+		}
+		if (mEnd >= end) return true;
+		mDecoder.seek(mEnd);
+		for (long entry = mEnd; entry < end && mSize < mCapacity;
+				entry += mSampleRate) {
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			long sum = 0;
+			for (int i = 0; i < mSampleRate && mDecoder.hasNext(); ++i) {
+				int value = mDecoder.next();
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+				sum += value;
+			}
+			mMin[mSize] = min;
+			mMax[mSize] = max;
+			mSum[mSize] = sum;
+			++mSize;
+		}
+		mEnd = end;
+		return mDecoder.isValid();
+	}
+}
@@ -15,96 +15,377 @@
  */
 package com.google.android.netmeter;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
-import java.text.DecimalFormat;
 import java.util.Vector;
 
 import android.util.Log;
 import android.widget.TextView;
 
+/**
+ * CPU utilization monitor based on /proc/stat.
+ * 
+ * All "cpu" lines, the aggregate as well as one per core, are parsed in a
+ * single pass over the file. The tick counters of all cpus are kept in a
+ * flat primitive matrix with one row per cpu (row 0 is the aggregate, row
+ * n + 1 is core n) and FIELDS columns. From the deltas between two samples,
+ * the utilization breakdown of each cpu is derived into a matrix of the same
+ * shape. For every cpu, the busy percentage and the percentage of each
+ * field but idle are recorded in a HistoryBuffer of their own, persisted
+ * like the interface histories. Cores which are offline are recorded as
+ * idle, and the histories of a core first seen while running are padded
+ * to line up with those of the aggregate.
+ * 
+ * Sampling runs on the collector thread of the service. The linked view is
+ * only touched by paint(), which is called on the UI thread with the
+ * latest Snapshot.
+ */
 public class CpuMon {
-	final private String STAT_FILE = "/proc/stat";
-	final private DecimalFormat mPercentFmt = new DecimalFormat("#0.0");
+	// columns of the tick matrices, in /proc/stat order
+	final static public int USER = 0;
+	final static public int NICE = 1;
+	final static public int SYSTEM = 2;
+	final static public int IDLE = 3;
+	final static public int IOWAIT = 4;
+	final static public int IRQ = 5;
+	final static public int SOFTIRQ = 6;
+	final static public int STEAL = 7;
+	final static public int FIELDS = 8;
+	
+	// names of the fields with a history, idle is implied by the others
+	final static private String[] FIELD_NAMES = {
+		"user", "nice", "system", null, "iowait", "irq", "softirq", "steal"
+	};
+	
+	// relative to the proc root
+	final private String STAT_FILE = "/stat";
+	
+	final private File mHistoryDir;
+	final private int mSamplingInterval;
 	
-	private long mUser;
-	private long mSystem;
-	private long mTotal;
+	final private String mStatPath;
+	final private ProcFile mStatFile;
+	private byte[] mBuffer;
 	
-	private HistoryBuffer mHistory;
+	// cpu rows: previous and current ticks, breakdown of the last interval
+	private int mRows = 0;
+	private long[] mPrevTicks = new long[0];
+	private long[] mTicks = new long[0];
+	private float[] mBreakdown = new float[0];
+	private boolean[] mValid = new boolean[0];
+	private boolean[] mPresent = new boolean[0];
+	// whether a previous sample has opened the current interval
+	private boolean mSampled = false;
+	// per cpu row, history of the busy percentage and of each field
+	private HistoryBuffer[] mHistories = new HistoryBuffer[0];
+	private HistoryBuffer[][] mFieldHistories = new HistoryBuffer[0][];
 		
 	private Vector<TextView> mDisplay;
+	private DisplayText mText;
 	
 	
-	public CpuMon() {
-		mHistory = new HistoryBuffer();
+	/**
+	 * @param history_dir directory for persistent history or null to keep
+	 * 	the history in memory only
+	 * @param sampling_interval nominal sampling interval in seconds
+	 */
+	public CpuMon(File history_dir, int sampling_interval) {
+		this(history_dir, sampling_interval, ProcFile.PROC_ROOT);
+	}
+	
+	/**
+	 * @param proc_root root of the proc file system to read
+	 */
+	public CpuMon(File history_dir, int sampling_interval, String proc_root) {
+		mStatPath = proc_root + STAT_FILE;
+		mStatFile = new ProcFile(mStatPath);
+		mHistoryDir = history_dir;
+		mSamplingInterval = sampling_interval;
+		ensureRows(1);
 		readStats();
 	}
 	
+	/**
+	 * @return history of the aggregate utilization of all cores
+	 */
 	public HistoryBuffer getHistory() {
-		return mHistory;
+		return mHistories[0];
+	}
+	
+	/**
+	 * @return number of cores seen so far
+	 */
+	public int getCoreCount() {
+		return mRows - 1;
+	}
+	
+	public HistoryBuffer getCoreHistory(int core) {
+		return mHistories[core + 1];
+	}
+	
+	/**
+	 * @param core index of the core, or -1 for the aggregate of all cores
+	 * @param field one of the USER to STEAL column constants
+	 * @return history of the percentage spent in the given state, or null
+	 * 	for IDLE, which is not recorded
+	 */
+	public HistoryBuffer getFieldHistory(int core, int field) {
+		return mFieldHistories[core + 1][field];
+	}
+	
+	/**
+	 * @return name of the given field in series names, or null for IDLE
+	 */
+	public static String getFieldName(int field) {
+		return FIELD_NAMES[field];
+	}
+	
+	/**
+	 * @param core index of the core, or -1 for the aggregate of all cores
+	 * @param field one of the USER to STEAL column constants
+	 * @return percentage of the last sampling interval spent in the given state
+	 */
+	public float getBreakdown(int core, int field) {
+		return mBreakdown[(core + 1) * FIELDS + field];
 	}
 	
+	/**
+	 * Link the display, called on the UI thread.
+	 */
 	public void linkDisplay(Vector<TextView> display) {
 		mDisplay = display;
-		readStats();
+		mText = new DisplayText(display.get(0));
 	}
 	
 	public void unlinkDisplay() {
 		mDisplay = null;
+		mText = null;
+	}
+	
+	/**
+	 * Release the file handle kept open for sampling.
+	 */
+	public void close() {
+		mStatFile.close();
+	}
+	
+	/**
+	 * Add the utilization of the last interval to a snapshot.
+	 */
+	public void fillSnapshot(Snapshot snapshot) {
+		// user = user + nice, system = system + intr + soft_irq
+		snapshot.mCpuValid = mValid[0];
+		snapshot.mCpuUser = mBreakdown[USER] + mBreakdown[NICE];
+		snapshot.mCpuSystem = mBreakdown[SYSTEM] + mBreakdown[IRQ]
+				+ mBreakdown[SOFTIRQ];
+		snapshot.mCpuHistory = mHistories[0];
+	}
+	
+	/**
+	 * Display the given snapshot in the linked view, called on the UI
+	 * thread.
+	 */
+	public void paint(Snapshot snapshot) {
+		if (mDisplay != null && snapshot.mCpuValid) {
+			float user = snapshot.mCpuUser;
+			float system = snapshot.mCpuSystem;
+			mText.clear().appendPercent(user + system).append("% (")
+					.appendPercent(user).append('/')
+					.appendPercent(system).append(')').show();
+		}
+	}
+	
+	/**
+	 * @return percentage of the last sampling interval all cores together
+	 * 	spent busy
+	 */
+	public float getBusy() {
+		return 100.0f - mBreakdown[IDLE] - mBreakdown[IOWAIT] - mBreakdown[STEAL];
 	}
 	
 	public boolean readStats() {
-		FileReader fstream;
+		return readStats(1);
+	}
+	
+	/**
+	 * @param ticks number of base sampling intervals since the last sample,
+	 * 	each of which is recorded in the history
+	 */
+	public boolean readStats(int ticks) {
 		try {
-			fstream = new FileReader(STAT_FILE);
-		} catch (FileNotFoundException e) {
-			Log.e("MonNet", "Could not read " + STAT_FILE);
+			mStatFile.read();
+		} catch (IOException e) {
+			Log.e("MonNet", "Could not read " + mStatPath);
 			return false;
 		}
-		BufferedReader in = new BufferedReader(fstream, 500);
-		String line;
-		try {
-			while ((line = in.readLine()) != null) {
-				if (line.startsWith("cpu")) {
-					updateStats(line.trim().split("[ ]+"));
-					return true;
+		mBuffer = mStatFile.getData();
+		int length = mStatFile.getLength();
+		for (int row = 0; row < mRows; ++row) {
+			mPresent[row] = false;
+		}
+		int pos = 0;
+		while (pos < length) {
+			int line_end = pos;
+			while (line_end < length && mBuffer[line_end] != '\n') ++line_end;
+			if (line_end - pos > 3 && mBuffer[pos] == 'c'
+					&& mBuffer[pos + 1] == 'p' && mBuffer[pos + 2] == 'u') {
+				parseCpuLine(pos + 3, line_end);
+			}
+			pos = line_end + 1;
+		}
+		if (!mPresent[0]) return false;
+		updateStats(ticks);
+		return true;
+	}
+	
+	/**
+	 * Parse the part of a "cpu" line following the "cpu" prefix, which is
+	 * either blank for the aggregate or the core number.
+	 */
+	private void parseCpuLine(int pos, int end) {
+		int row = 0;
+		if (mBuffer[pos] != ' ') {
+			int core = 0;
+			while (pos < end && mBuffer[pos] >= '0' && mBuffer[pos] <= '9') {
+				core = core * 10 + (mBuffer[pos++] - '0');
+			}
+			row = core + 1;
+			ensureRows(row + 1);
+		}
+		int base = row * FIELDS;
+		for (int field = 0; field < FIELDS; ++field) {
+			while (pos < end && mBuffer[pos] == ' ') ++pos;
+			long value = 0;
+			while (pos < end && mBuffer[pos] >= '0' && mBuffer[pos] <= '9') {
+				value = value * 10 + (mBuffer[pos++] - '0');
+			}
+			// older kernels report fewer columns, the rest stays 0
+			mTicks[base + field] = value;
+		}
+		mPresent[row] = true;
+	}
+	
+	/**
+	 * Derive the breakdown of the interval since the previous sample and
+	 * record it for each tick covered. Every row gets a value for every
+	 * tick, so that the histories stay aligned: cores which are offline or
+	 * have just come up are recorded as idle, and a row whose counters have
+	 * not moved keeps its previous breakdown. The first sample only opens
+	 * the interval.
+	 */
+	private void updateStats(int ticks) {
+		for (int row = 0; row < mRows; ++row) {
+			int base = row * FIELDS;
+			if (!mPresent[row]) {
+				// offline core
+				mValid[row] = false;
+				setIdle(base);
+				continue;
+			}
+			long total = 0;
+			for (int field = 0; field < FIELDS; ++field) {
+				total += mTicks[base + field] - mPrevTicks[base + field];
+			}
+			if (!mValid[row]) {
+				setIdle(base);
+			} else if (total > 0) {
+				for (int field = 0; field < FIELDS; ++field) {
+					mBreakdown[base + field] = (float)
+						((mTicks[base + field] - mPrevTicks[base + field]) * 100.0 / total);
+				}
+			}
+			System.arraycopy(mTicks, base, mPrevTicks, base, FIELDS);
+			mValid[row] = true;
+		}
+		if (!mSampled) {
+			mSampled = true;
+			return;
+		}
+		for (int row = 0; row < mRows; ++row) {
+			int base = row * FIELDS;
+			float busy = 100.0f - mBreakdown[base + IDLE]
+					- mBreakdown[base + IOWAIT] - mBreakdown[base + STEAL];
+			mHistories[row].add((int)busy, ticks);
+			HistoryBuffer[] fields = mFieldHistories[row];
+			for (int field = 0; field < FIELDS; ++field) {
+				if (fields[field] != null) {
+					fields[field].add(Math.round(mBreakdown[base + field]), ticks);
 				}
 			}
-		} catch (IOException e) {
-			Log.e("MonNet", e.toString());
 		}
-		return false;
 	}
 	
-	private void updateStats(String[] segs) {
-		// user = user + nice
-		long user = Long.parseLong(segs[1]) + Long.parseLong(segs[2]);
-		// system = system + intr + soft_irq
-		long system = Long.parseLong(segs[3]) + Long.parseLong(segs[6]) + Long.parseLong(segs[7]);
-		// total = user + system + idle + io_wait
-		long total = user + system + Long.parseLong(segs[4]) + Long.parseLong(segs[5]);
-		
-		if (mTotal != 0 || total >= mTotal) {
-			long duser = user - mUser;
-			long dsystem = system - mSystem;
-			long dtotal = total - mTotal;
-			if (mDisplay != null) {
-				mDisplay.get(0).setText(mPercentFmt.format(
-						(double)(duser+dsystem)*100.0/dtotal) + "% ("
-				+ mPercentFmt.format(
-						(double)(duser)*100.0/dtotal) + "/"
-				+ mPercentFmt.format(
-						(double)(dsystem)*100.0/dtotal) + ")");
+	private void setIdle(int base) {
+		for (int field = 0; field < FIELDS; ++field) {
+			mBreakdown[base + field] = 0;
+		}
+		mBreakdown[base + IDLE] = 100.0f;
+	}
+	
+	/**
+	 * Grow the matrices to hold at least the given number of cpu rows.
+	 */
+	private void ensureRows(int rows) {
+		if (rows <= mRows) return;
+		mPrevTicks = grow(mPrevTicks, rows * FIELDS);
+		mTicks = grow(mTicks, rows * FIELDS);
+		float[] breakdown = new float[rows * FIELDS];
+		System.arraycopy(mBreakdown, 0, breakdown, 0, mBreakdown.length);
+		mBreakdown = breakdown;
+		boolean[] valid = new boolean[rows];
+		System.arraycopy(mValid, 0, valid, 0, mRows);
+		mValid = valid;
+		boolean[] present = new boolean[rows];
+		System.arraycopy(mPresent, 0, present, 0, mRows);
+		mPresent = present;
+		HistoryBuffer[] histories = new HistoryBuffer[rows];
+		System.arraycopy(mHistories, 0, histories, 0, mRows);
+		HistoryBuffer[][] field_histories = new HistoryBuffer[rows][];
+		System.arraycopy(mFieldHistories, 0, field_histories, 0, mRows);
+		for (int row = mRows; row < rows; ++row) {
+			String series = row == 0 ? "cpu" : "cpu" + (row - 1);
+			HistoryBuffer aggregate = row == 0 ? null : histories[0];
+			histories[row] = createHistory(series, aggregate);
+			if (aggregate == null) {
+				aggregate = histories[0];
 			}
-			mHistory.add((int)((duser + dsystem) * 100 / dtotal));
-		} 
-		mUser = user;
-		mSystem = system;
-		mTotal = total;
-		
-		
+			field_histories[row] = new HistoryBuffer[FIELDS];
+			for (int field = 0; field < FIELDS; ++field) {
+				if (FIELD_NAMES[field] != null) {
+					field_histories[row][field] = createHistory(
+							series + "-" + FIELD_NAMES[field], aggregate);
+				}
+			}
+		}
+		mHistories = histories;
+		mFieldHistories = field_histories;
+		mRows = rows;
+	}
+	
+	private long[] grow(long[] data, int size) {
+		long[] result = new long[size];
+		System.arraycopy(data, 0, result, 0, data.length);
+		return result;
+	}
+	
+	/**
+	 * @param aggregate history to line the new one up with, by padding it
+	 * 	with idle samples, or null
+	 */
+	private HistoryBuffer createHistory(String series, HistoryBuffer aggregate) {
+		HistoryBuffer history;
+		if (mHistoryDir == null) {
+			history = new HistoryBuffer();
+		} else {
+			history = HistoryBuffer.open(new File(mHistoryDir,
+					"history-" + series + ".dat"), mSamplingInterval);
+		}
+		if (aggregate != null) {
+			long missing = aggregate.getCoverage() - history.getCoverage();
+			if (missing > 0) {
+				history.pad((int)missing);
+			}
+		}
+		return history;
 	}
-}
\ No newline at end of file
+}
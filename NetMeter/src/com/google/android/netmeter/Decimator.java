@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+/**
+ * Reduction of a run of entries to pixel columns for drawing.
+ *
+ * Entry number e, counted since the series was created, belongs to pixel
+ * column e * width / x_range, so every entry keeps its column while the
+ * graph scrolls. When several entries fall into one column, they are
+ * reduced to the first, last, lowest and highest average, plus the lowest
+ * minimum and the highest maximum. A column is then drawn as one vertical
+ * segment and one segment joining it to the previous column, so no spike
+ * is lost and the number of segments depends on the width of the view
+ * only.
+ */
+class Decimator {
+	// column i is mFirstColumn + mOffset[i], for i < mColumns
+	long mFirstColumn;
+	int mColumns = 0;
+	int[] mOffset = new int[0];
+	int[] mFirst = new int[0];
+	int[] mLast = new int[0];
+	int[] mLow = new int[0];
+	int[] mHigh = new int[0];
+	int[] mMin = new int[0];
+	int[] mMax = new int[0];
+
+	/**
+	 * @param first_entry number of the entry in avg[0]
+	 * @param min, max minima and maxima of the entries, or null to use
+	 * 	the averages, as for single sample entries
+	 */
+	public void reduce(long first_entry, int count, int x_range, int width,
+			int[] avg, int[] min, int[] max) {
+		if (mFirst.length < count) {
+			mOffset = new int[count];
+			mFirst = new int[count];
+			mLast = new int[count];
+			mLow = new int[count];
+			mHigh = new int[count];
+			mMin = new int[count];
+			mMax = new int[count];
+		}
+		mColumns = 0;
+		if (count == 0) return;
+		mFirstColumn = first_entry * width / x_range;
+		int c = -1;
+		long current = -1;
+		for (int i = 0; i < count; ++i) {
+			long column = (first_entry + i) * width / x_range;
+			int value = avg[i];
+			int low = min == null ? value : min[i];
+			int high = max == null ? value : max[i];
+			if (column != current) {
+				current = column;
+				++c;
+				mOffset[c] = (int)(column - mFirstColumn);
+				mFirst[c] = value;
+				mLow[c] = value;
+				mHigh[c] = value;
+				mMin[c] = low;
+				mMax[c] = high;
+			} else {
+				mLow[c] = Math.min(mLow[c], value);
+				mHigh[c] = Math.max(mHigh[c], value);
+				mMin[c] = Math.min(mMin[c], low);
+				mMax[c] = Math.max(mMax[c], high);
+			}
+			mLast[c] = value;
+		}
+		mColumns = c + 1;
+	}
+}
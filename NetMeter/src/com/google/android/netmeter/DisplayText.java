@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import android.widget.TextView;
+
+/**
+ * Text of a TextView, formatted without allocating.
+ *
+ * The text is built with clear() and the append methods into a reused char
+ * array and handed to the view with setText(char[], int, int), which keeps
+ * a reference to the array instead of copying it. Two arrays are used in
+ * turn, so the one shown by the view is never modified. If the new text
+ * equals the one shown, the view is not touched at all, which also saves
+ * the relayout.
+ *
+ * Only used on the UI thread.
+ */
+class DisplayText {
+	final static private int INITIAL_SIZE = 32;
+
+	final private TextView mView;
+	private char[] mShown = new char[INITIAL_SIZE];
+	private int mShownLength = -1;
+	private char[] mText = new char[INITIAL_SIZE];
+	private int mLength = 0;
+
+	DisplayText(TextView view) {
+		mView = view;
+	}
+
+	public DisplayText clear() {
+		mLength = 0;
+		return this;
+	}
+
+	public DisplayText append(char c) {
+		reserve(1);
+		mText[mLength++] = c;
+		return this;
+	}
+
+	/**
+	 * Append a string, null is taken as empty like TextView does.
+	 */
+	public DisplayText append(String text) {
+		if (text == null) return this;
+		reserve(text.length());
+		text.getChars(0, text.length(), mText, mLength);
+		mLength += text.length();
+		return this;
+	}
+
+	/**
+	 * Append an integer, optionally with thousands separators.
+	 */
+	public DisplayText append(long value, boolean grouping) {
+		reserve(27);
+		if (value < 0) {
+			mText[mLength++] = '-';
+			if (value == Long.MIN_VALUE) {
+				return append(Long.toString(value).substring(1));
+			}
+			value = -value;
+		}
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			++digits;
+		}
+		int end = mLength + digits + (grouping ? (digits - 1) / 3 : 0);
+		int pos = end;
+		for (int i = 0; i < digits; ++i) {
+			if (grouping && i > 0 && i % 3 == 0) {
+				mText[--pos] = ',';
+			}
+			mText[--pos] = (char)('0' + value % 10);
+			value /= 10;
+		}
+		mLength = end;
+		return this;
+	}
+
+	/**
+	 * Append a value with one decimal, rounded half up.
+	 *
+	 * @param tenths the value times ten
+	 * @param grouping use thousands separators
+	 */
+	public DisplayText appendTenths(long tenths, boolean grouping) {
+		if (tenths < 0) {
+			append('-');
+			tenths = -tenths;
+		}
+		append(tenths / 10, grouping);
+		return append('.').append((char)('0' + tenths % 10));
+	}
+
+	public DisplayText appendPercent(float value) {
+		return appendTenths(Math.round(value * 10), false);
+	}
+
+	/**
+	 * Show the text built since clear(), unless the view shows it already.
+	 *
+	 * @return true if the view was updated
+	 */
+	public boolean show() {
+		if (mLength == mShownLength) {
+			int i = 0;
+			while (i < mLength && mText[i] == mShown[i]) {
+				++i;
+			}
+			if (i == mLength) return false;
+		}
+		char[] shown = mText;
+		mText = mShown;
+		mShown = shown;
+		mShownLength = mLength;
+		if (mText.length < mShown.length) {
+			mText = new char[mShown.length];
+		}
+		mView.setText(mShown, 0, mShownLength);
+		return true;
+	}
+
+	private void reserve(int chars) {
+		if (mLength + chars <= mText.length) return;
+		char[] text = new char[Math.max(mText.length * 2, mLength + chars)];
+		System.arraycopy(mText, 0, text, 0, mLength);
+		mText = text;
+	}
+}
@@ -15,50 +15,115 @@
  */
 package com.google.android.netmeter;
 
-import java.util.Vector;
-
-import com.google.android.netmeter.HistoryBuffer.CircularBuffer;
-
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.view.View;
 
 
+/**
+ * History graph of network and CPU activity.
+ * 
+ * The graph shows one panel with receive and transmit rate for each of the
+ * up to MAX_INTERFACES busiest network interfaces (by cumulative traffic),
+ * followed by a panel with the CPU utilization. At resolutions where each
+ * point aggregates several samples, the range between minimum and maximum
+ * is drawn as an envelope behind the average, so that short bursts remain
+ * visible.
+ * 
+ * The view draws the latest Snapshot handed over by the service. Since the
+ * histories keep being written by the collector thread while drawing, the
+ * history sequence numbers are checked after drawing and the view is
+ * redrawn if an update raced with it.
+ * 
+ * Each panel keeps its series drawn into an offscreen bitmap, used as a
+ * ring of pixel columns: every history entry has a fixed column, so a new
+ * entry only needs its own columns cleared and drawn, and the bitmap is
+ * copied to the screen in two parts, oldest first. The bitmap is only
+ * redrawn in full when the scale, the resolution, the size or the series
+ * shown change, or when drawing raced with the collector. Where there are
+ * more entries than pixel columns, as at the longer timescales, entries are
+ * reduced per column by a Decimator.
+ * 
+ * Drawing does not allocate: series are copied out of their histories in
+ * bulk into reused arrays, turned into line segments in reused float arrays
+ * and drawn with one drawLines() call each. Projections are kept per panel
+ * and only recomputed when the view size or the scale changes.
+ */
 class GraphView extends View {	
 	final private int TICKS = 3;
+	final private int MAX_INTERFACES = 2;
+	final private String LOOPBACK = "lo";
 	final private Paint mBackgroundPaint = makePaint(Color.BLUE);
 	final private Paint mAxisPaint = makePaint(Color.BLACK);
 	final private Paint mIn = makePaint(Color.RED);
 	final private Paint mOut = makePaint(Color.GREEN);
 	final private Paint mCpu = makePaint(Color.LTGRAY);
+	// min/max envelope drawn behind the averages of aggregated entries
+	final private int ENVELOPE_ALPHA = 0x60;
+	final private Paint mInEnvelope = makePaint(Color.RED, ENVELOPE_ALPHA);
+	final private Paint mOutEnvelope = makePaint(Color.GREEN, ENVELOPE_ALPHA);
+	final private Paint mCpuEnvelope = makePaint(Color.LTGRAY, ENVELOPE_ALPHA);
 	
-	private Vector<StatCounter> mCounters = null;
-	private HistoryBuffer mCpuCounter = null;
+	private Snapshot mSnapshot = null;
+	final private int[] mShown = new int[MAX_INTERFACES];
 	
 	private int mResolution = 0;
 	private int mRefreshTicks = 0;
+	
+	// one projection per interface panel plus the cpu panel
+	final private Projection[] mProjections = new Projection[MAX_INTERFACES + 1];
+	// series copied out of a history, oldest entry first
+	private int[] mAvg = new int[0];
+	private int[] mMin = new int[0];
+	private int[] mMax = new int[0];
+	// line segments, 4 coordinates each
+	private float[] mLines = new float[0];
+	private float[] mEnvelope = new float[0];
+	// offscreen rendering per panel, the cpu panel last
+	final private Plot[] mPlots = new Plot[MAX_INTERFACES + 1];
+	final private HistorySeries[] mInterfaceSeries = new HistorySeries[2];
+	final private HistorySeries[] mCpuSeries = new HistorySeries[1];
 
 	
 	class Projection {
-		final public int mWidth;
-		final public int  mHeight;
-		final public int mOffset;
-		final public int mXrange;
-		final public int mYrange;
-		final private float mXscale;
-		final private float mYscale;
-		public Projection(int width, int height, int offset,
+		final private String mUnit;
+		public int mWidth = -1;
+		public int mHeight;
+		public int mOffset;
+		public int mXrange;
+		public int mYrange;
+		private float mXscale;
+		private float mYscale;
+		private String mLabel;
+		public Projection(String unit) {
+			mUnit = unit;
+		}
+		/**
+		 * Change the projection, recomputing the scales and the axis label
+		 * only if anything differs.
+		 */
+		public Projection set(int width, int height, int offset,
 						int x_range, int y_range) {
+			if (width == mWidth && height == mHeight && offset == mOffset
+					&& x_range == mXrange && y_range == mYrange) {
+				return this;
+			}
 			mWidth = width;
 			mHeight = height;
 			mOffset = offset;
 			mXrange = x_range;
+			if (y_range != mYrange || mLabel == null) {
+				mLabel = Integer.toString(y_range) + mUnit;
+			}
 			mYrange = y_range;
 			mXscale = (float)(width) / x_range;
 			mYscale = (float)(height) / y_range;
+			return this;
 		}
 		public float x(int x) {
 			return x * mXscale + 5;
@@ -68,8 +133,238 @@ class GraphView extends View {
 		}
 	}
 	
+	/**
+	 * Bitmap of the series of one panel, covering the plot area of its
+	 * Projection. Entry e of a series is drawn in column
+	 * e * width / x range of a ring of width + 1 columns, which is exactly
+	 * the span of the x range.
+	 */
+	class Plot {
+		final private Paint[] mLinePaints;
+		final private Paint[] mEnvelopePaints;
+		final private HistorySeries[] mSeries;
+		// number of entries of each series drawn so far
+		final private int[] mVersions;
+		final private Decimator[] mDecimators;
+		final private Rect mSource = new Rect();
+		final private Rect mDest = new Rect();
+		private Bitmap mBitmap = null;
+		private Canvas mCanvas = null;
+		private Projection mProj = null;
+		private int mColumns;
+		private int mRows;
+		private int mXrange;
+		private int mYrange;
+		private long mNewest = -1;
+		private boolean mValid = false;
+		
+		public Plot(Paint[] line_paints, Paint[] envelope_paints) {
+			mLinePaints = line_paints;
+			mEnvelopePaints = envelope_paints;
+			mSeries = new HistorySeries[line_paints.length];
+			mVersions = new int[line_paints.length];
+			mDecimators = new Decimator[line_paints.length];
+			for (int i = 0; i < mDecimators.length; ++i) {
+				mDecimators[i] = new Decimator();
+			}
+		}
+		
+		/**
+		 * Force a full redraw on the next update.
+		 */
+		public void invalidate() {
+			mValid = false;
+		}
+		
+		public void release() {
+			if (mBitmap != null) {
+				mBitmap.recycle();
+				mBitmap = null;
+				mCanvas = null;
+			}
+		}
+		
+		/**
+		 * Bring the bitmap up to date with the series, drawing only the
+		 * columns of entries added since the last update if possible.
+		 * 
+		 * @param series one history level per paint given to the constructor
+		 */
+		public void update(Projection proj, HistorySeries[] series) {
+			mProj = proj;
+			if (mBitmap == null || mColumns != proj.mWidth + 1
+					|| mRows != proj.mHeight + 1) {
+				release();
+				mColumns = proj.mWidth + 1;
+				mRows = proj.mHeight + 1;
+				mBitmap = Bitmap.createBitmap(mColumns, mRows,
+						Bitmap.Config.RGB_565);
+				mCanvas = new Canvas(mBitmap);
+				mValid = false;
+			}
+			if (proj.mXrange != mXrange || proj.mYrange != mYrange) {
+				mXrange = proj.mXrange;
+				mYrange = proj.mYrange;
+				mValid = false;
+			}
+			long newest = -1;
+			long first_column = Long.MAX_VALUE;
+			for (int i = 0; i < mSeries.length; ++i) {
+				int version = series[i].getVersion();
+				if (series[i] != mSeries[i] || version < mVersions[i]) {
+					mSeries[i] = series[i];
+					mValid = false;
+				} else if (version > mVersions[i]) {
+					// from the column of the last entry drawn, which is
+					// crossed by the segment joining the new entries
+					first_column = Math.min(first_column,
+							column(mVersions[i] - 1));
+				}
+				newest = Math.max(newest, version - 1);
+			}
+			if (mValid && newest - mNewest > mXrange) {
+				// everything shown is new
+				mValid = false;
+			}
+			mNewest = newest;
+			if (newest < 0) {
+				mValid = false;
+				return;
+			}
+			if (!mValid) {
+				mCanvas.drawPaint(mBackgroundPaint);
+				draw(column(newest - mXrange), column(newest));
+				mValid = true;
+			} else if (first_column != Long.MAX_VALUE) {
+				draw(first_column, column(newest));
+			}
+		}
+		
+		/**
+		 * Copy the bitmap to the plot area, the newest column at the right
+		 * edge of the x range.
+		 */
+		public void draw(Canvas canvas) {
+			if (mNewest < 0) return;
+			int newest = (int)(column(mNewest) % mColumns);
+			int left = (int)mProj.x(0);
+			int top = mProj.mOffset;
+			// columns older than the newest one, up to the end of the ring
+			int older = mColumns - 1 - newest;
+			if (older > 0) {
+				mSource.set(newest + 1, 0, mColumns, mRows);
+				mDest.set(left, top, left + older, top + mRows);
+				canvas.drawBitmap(mBitmap, mSource, mDest, null);
+			}
+			mSource.set(0, 0, newest + 1, mRows);
+			mDest.set(left + older, top, left + mColumns, top + mRows);
+			canvas.drawBitmap(mBitmap, mSource, mDest, null);
+		}
+		
+		private long column(long entry) {
+			return entry * (mColumns - 1) / mXrange;
+		}
+		
+		/**
+		 * Clear and redraw a range of columns, which may wrap around the
+		 * ring.
+		 */
+		private void draw(long from_column, long to_column) {
+			from_column = Math.max(from_column, 0);
+			// entries from the first one in from_column, plus the previous
+			// one for the segment joining it
+			long from_entry = (from_column * mXrange + mColumns - 2)
+					/ (mColumns - 1) - 1;
+			for (int i = 0; i < mSeries.length; ++i) {
+				HistorySeries data = mSeries[i];
+				mVersions[i] = data.getVersion();
+				long first = Math.max(from_entry,
+						mVersions[i] - (long)data.getSize());
+				int count = (int)Math.max(mVersions[i] - first, 0);
+				reserve(count);
+				boolean envelope = data.getSampleRate() != 1;
+				count = data.copyRecent(count, mAvg,
+						envelope ? mMin : null, envelope ? mMax : null);
+				mDecimators[i].reduce(mVersions[i] - count, count,
+						mXrange, mColumns - 1, mAvg,
+						envelope ? mMin : null, envelope ? mMax : null);
+			}
+			long origin = from_column - from_column % mColumns;
+			for (; origin <= to_column; origin += mColumns) {
+				int left = (int)Math.max(from_column - origin, 0);
+				int right = (int)Math.min(to_column - origin, mColumns - 1) + 1;
+				mCanvas.save();
+				mCanvas.clipRect(left, 0, right, mRows);
+				mCanvas.drawRect(left, 0, right, mRows, mBackgroundPaint);
+				for (int i = 0; i < mSeries.length; ++i) {
+					drawColumns(mDecimators[i], origin, left, right,
+							mLinePaints[i],
+							mSeries[i].getSampleRate() != 1
+							? mEnvelopePaints[i] : null);
+				}
+				mCanvas.restore();
+			}
+		}
+		
+		/**
+		 * Draw reduced columns, per column the envelope, the range of the
+		 * averages and a segment from the previous column. Only columns
+		 * touching the bitmap range from left to right are drawn.
+		 * 
+		 * @param origin column drawn at the left edge of the bitmap
+		 */
+		private void drawColumns(Decimator decimator, long origin,
+				int left, int right, Paint color, Paint envelope_color) {
+			int columns = decimator.mColumns;
+			long shift = decimator.mFirstColumn - origin;
+			float top = mProj.mOffset;
+			int count = 0;
+			if (envelope_color != null) {
+				for (int c = 0; c < columns; ++c) {
+					long x = shift + decimator.mOffset[c];
+					if (x < left || x >= right) continue;
+					mEnvelope[count++] = x;
+					mEnvelope[count++] = mProj.y(decimator.mMin[c]) - top;
+					mEnvelope[count++] = x;
+					mEnvelope[count++] = mProj.y(decimator.mMax[c]) - top;
+				}
+				mCanvas.drawLines(mEnvelope, 0, count, envelope_color);
+			}
+			count = 0;
+			long x_prev = 0;
+			for (int c = 0; c < columns; ++c) {
+				long x = shift + decimator.mOffset[c];
+				if (c > 0 && x >= left && x_prev < right) {
+					mLines[count++] = x_prev;
+					mLines[count++] = mProj.y(decimator.mLast[c - 1]) - top;
+					mLines[count++] = x;
+					mLines[count++] = mProj.y(decimator.mFirst[c]) - top;
+				}
+				if (x >= left && x < right
+						&& decimator.mLow[c] != decimator.mHigh[c]) {
+					mLines[count++] = x;
+					mLines[count++] = mProj.y(decimator.mLow[c]) - top;
+					mLines[count++] = x;
+					mLines[count++] = mProj.y(decimator.mHigh[c]) - top;
+				}
+				x_prev = x;
+			}
+			mCanvas.drawLines(mLines, 0, count, color);
+		}
+	}
+	
 	public GraphView(Context context, AttributeSet attrs) {
 		super(context, attrs);
+		for (int i = 0; i < MAX_INTERFACES; ++i) {
+			mProjections[i] = new Projection("bps");
+		}
+		mProjections[MAX_INTERFACES] = new Projection("%");
+		for (int i = 0; i < MAX_INTERFACES; ++i) {
+			mPlots[i] = new Plot(new Paint[] { mIn, mOut },
+					new Paint[] { mInEnvelope, mOutEnvelope });
+		}
+		mPlots[MAX_INTERFACES] = new Plot(new Paint[] { mCpu },
+				new Paint[] { mCpuEnvelope });
 	}
 	
 	public String toggleScale() {
@@ -83,7 +378,8 @@ class GraphView extends View {
 		return getBanner();
 	}
 	
-	public void refresh() {
+	public void refresh(Snapshot snapshot) {
+		mSnapshot = snapshot;
 		if (mRefreshTicks == 0) {
 			invalidate();
 			mRefreshTicks = mResolution * 2 + 1;
@@ -92,55 +388,126 @@ class GraphView extends View {
 		}
 	}
 	
-	public void linkCounters(Vector<StatCounter> counters,
-							HistoryBuffer cpu) {
-		mCounters = counters;
-		mCpuCounter = cpu;
+	public void linkCounters(Snapshot snapshot) {
+		mSnapshot = snapshot;
 		mResolution = getMaxTimescale();
 		invalidate();
 	}
 	
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		for (int i = 0; i < mPlots.length; ++i) {
+			mPlots[i].release();
+		}
+	}
+	
 	@Override
 	public void onDraw(Canvas canvas) {
         canvas.drawPaint(mBackgroundPaint);
-        if (mCounters == null || mCpuCounter == null) return;
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null || snapshot.mCpuHistory == null) return;
   
-        Projection cell_proj = getDataScale(0);
-        Projection wifi_proj = getDataScale(1);
-        int offset = (getHeight() - 15) / 3 * 2;
-        Projection cpu_proj = new Projection(cell_proj.mWidth,
-        									cell_proj.mHeight,
-        									offset,
-        									cell_proj.mXrange, 100);
+        int shown = selectInterfaces(snapshot);
+        int panels = shown + 1;
+        int sequence = getSequence(snapshot, shown);
+        for (int i = 0; i < shown; ++i) {
+        	int id = mShown[i];
+        	Projection proj = getDataScale(snapshot, id, i, panels);
+        	mInterfaceSeries[0] = snapshot.mHistories[id * 2].getData(mResolution);
+        	mInterfaceSeries[1] = snapshot.mHistories[id * 2 + 1].getData(mResolution);
+        	mPlots[i].update(proj, mInterfaceSeries);
+        	mPlots[i].draw(canvas);
+        	drawAxis(canvas, proj, snapshot.mNames[id]);
+        }
         
-        drawAxis(canvas, cell_proj, "cellular", "bps");
-        drawAxis(canvas, wifi_proj, "wifi", "bps");
-        drawAxis(canvas, cpu_proj, "cpu", "%");
+        int height = (getHeight() - 15) / panels;
+        Projection cpu_proj = mProjections[MAX_INTERFACES].set(getWidth() - 10,
+        									height - 5,
+        									height * shown,
+        									getXRange(), 100);
+        mCpuSeries[0] = snapshot.mCpuHistory.getData(mResolution);
+        mPlots[MAX_INTERFACES].update(cpu_proj, mCpuSeries);
+        mPlots[MAX_INTERFACES].draw(canvas);
+        drawAxis(canvas, cpu_proj, "cpu");
         
-		
 		canvas.drawText(getBanner(),
 				cpu_proj.x(cpu_proj.mXrange / 2), cpu_proj.y(0) + 12,
 				mAxisPaint);
         
-        drawGraph(canvas, cell_proj, mIn, 
-        		mCounters.get(0).getHistory().getData(mResolution));
-        drawGraph(canvas, cell_proj, mOut, 
-        		mCounters.get(1).getHistory().getData(mResolution));
-        
-        drawGraph(canvas, wifi_proj, mIn, 
-        		mCounters.get(2).getHistory().getData(mResolution));
-        drawGraph(canvas, wifi_proj, mOut, 
-        		mCounters.get(3).getHistory().getData(mResolution));
-        
-        drawGraph(canvas, cpu_proj, mCpu,
-        		mCpuCounter.getData(mResolution));
+        if ((sequence & 1) != 0 || sequence != getSequence(snapshot, shown)) {
+        	// drawn while a sample was added, try again with settled data
+        	for (int i = 0; i < mPlots.length; ++i) {
+        		mPlots[i].invalidate();
+        	}
+        	postInvalidate();
+        }
+	}
+	
+	/**
+	 * Combined write sequence of the histories drawn, odd if any of them
+	 * is being updated.
+	 */
+	private int getSequence(Snapshot snapshot, int shown) {
+		int sequence = snapshot.mCpuHistory.getSequence();
+		int odd = sequence & 1;
+		for (int i = 0; i < shown; ++i) {
+			for (int j = 0; j < 2; ++j) {
+				int s = snapshot.mHistories[mShown[i] * 2 + j].getSequence();
+				odd |= s & 1;
+				sequence += s;
+			}
+		}
+		// sequence numbers only increase, so the sum changes with any of them
+		return (sequence & ~1) | odd;
+	}
+	
+	/**
+	 * Pick the non-loopback interfaces with the most cumulative traffic
+	 * and store their ids in ascending order in mShown.
+	 * 
+	 * @return number of interfaces selected
+	 */
+	private int selectInterfaces(Snapshot snapshot) {
+		long[] traffic = snapshot.mTraffic;
+		int count = 0;
+		for (int id = 0; id < snapshot.getInterfaceLimit(); ++id) {
+			if (snapshot.mNames[id] == null
+					|| LOOPBACK.equals(snapshot.mNames[id])) {
+				continue;
+			}
+			if (count < MAX_INTERFACES) {
+				mShown[count++] = id;
+				continue;
+			}
+			int min = 0;
+			for (int i = 1; i < count; ++i) {
+				if (traffic[mShown[i]] < traffic[mShown[min]]) {
+					min = i;
+				}
+			}
+			if (traffic[id] > traffic[mShown[min]]) {
+				mShown[min] = id;
+			}
+		}
+		// keep panel order stable by sorting on id
+		for (int i = 1; i < count; ++i) {
+			int id = mShown[i];
+			int j = i - 1;
+			while (j >= 0 && mShown[j] > id) {
+				mShown[j + 1] = mShown[j];
+				--j;
+			}
+			mShown[j + 1] = id;
+		}
+		return count;
 	}
 	
 	private int getMaxTimescale() {
-		int capacity = mCounters.get(0).getHistory()
-						.getData(5).getCapacity();
-		int size = mCounters.get(0).getHistory()
-					.getData(5).getSize();
+		if (mSnapshot == null || mSnapshot.mCpuHistory == null) return 0;
+		HistoryBuffer cpu = mSnapshot.mCpuHistory;
+		int capacity = cpu.getData(5).getCapacity();
+		int size = cpu.getData(5).getSize();
 		
 		capacity -= capacity/10;
 		if (size > capacity/2) return 6;
@@ -173,19 +540,24 @@ class GraphView extends View {
 		}
 	}
 	
-	private Projection getDataScale(int index) {
-		int xscale = mCounters.get(index * 2).getHistory()
-					.getData(mResolution).getCapacity();
+	private int getXRange() {
+		int xscale = mSnapshot.mCpuHistory.getData(mResolution).getCapacity();
 		if (mResolution == 0) {
 			xscale /= 4;
 		}
 		else if (mResolution % 2 == 1) {
 			xscale /= 2;
 		}
+		return xscale;
+	}
+	
+	private Projection getDataScale(Snapshot snapshot, int id,
+			int panel, int panels) {
+		int xscale = getXRange();
 		int yscale = 10;
 		
 		for (int i=0; i< 2; ++i) {
-			int val = mCounters.get(index * 2 + i).getHistory()
+			int val = snapshot.mHistories[id * 2 + i]
 					.getData(mResolution).getMax(xscale);
 			if (val > yscale) {
 				yscale = val;
@@ -193,30 +565,26 @@ class GraphView extends View {
 		}
 		yscale = yscale + (yscale/10); // + 10%
 		yscale = ((yscale / 10) + 1) * 10;
-		int height = (getHeight() - 15) / 3;
-		return new Projection(getWidth() - 10,
+		int height = (getHeight() - 15) / panels;
+		return mProjections[panel].set(getWidth() - 10,
 				height - 5,
-				height * index,
+				height * panel,
 				xscale, yscale);
 	}
 	
-	private void drawGraph(Canvas canvas,
-			Projection proj,
-			Paint color,
-			CircularBuffer data) {
-		int y_start = data.lookBack(0);
-		int y_end;
-		for (int i = 1; i < data.getSize(); ++i) {
-			y_end = data.lookBack(i);
-			canvas.drawLine(proj.x(proj.mXrange - i + 1), proj.y(y_start),
-					proj.x(proj.mXrange - i), proj.y(y_end),
-					color);
-			y_start = y_end;
-		}
+	/**
+	 * Grow the scratch arrays to hold the given number of entries.
+	 */
+	private void reserve(int entries) {
+		if (mAvg.length >= entries) return;
+		mAvg = new int[entries];
+		mMin = new int[entries];
+		mMax = new int[entries];
+		mLines = new float[entries * 8];
+		mEnvelope = new float[entries * 4];
 	}
 	
-	private void drawAxis(Canvas canvas, Projection proj,
-			String title, String unit) {
+	private void drawAxis(Canvas canvas, Projection proj, String title) {
 		
 		canvas.drawLine(proj.x(0), proj.y(0),
 				proj.x(proj.mXrange), proj.y(0),
@@ -236,7 +604,7 @@ class GraphView extends View {
 			canvas.drawLine(proj.x(0), proj.y(y_step * i),
 					proj.x(0) + 10, proj.y(y_step * i), mAxisPaint);	
 		}
-		canvas.drawText(Integer.toString(proj.mYrange) + unit,
+		canvas.drawText(proj.mLabel,
 				proj.x(0) + 10, proj.y(proj.mYrange) + 10, mAxisPaint);
 		
 		canvas.drawText(title, proj.x(proj.mXrange / 2),
@@ -250,4 +618,10 @@ class GraphView extends View {
 		p.setColor(color);
 		return p;
 	}
+	
+	private Paint makePaint(int color, int alpha) {
+		Paint p = makePaint(color);
+		p.setAlpha(alpha);
+		return p;
+	}
 }
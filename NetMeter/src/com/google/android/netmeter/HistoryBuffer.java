@@ -15,56 +15,380 @@
  */
 package com.google.android.netmeter;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * History of a sampled value at several resolutions: 1h of samples, 6h of
+ * 1 minute averages, 24h of 2 minute averages, 30 days of 30 minute
+ * averages and a year of daily averages.
+ * 
+ * The levels cascade: only the finest level is fed with the samples, and
+ * each level feeds the aggregate of every entry it completes into the next
+ * coarser level. A sample therefore costs amortized constant time however
+ * many levels there are, and runs of a constant value, like the padding of
+ * a gap, are added in bulk.
+ * 
+ * Each entry records the minimum, maximum, sum and count of the samples it
+ * covers, which takes 20 bytes plus 8 bytes for the max tree on the heap.
+ * With the level table below, a history takes 3606 entries or about 100KB.
+ * 
+ * The rings are either kept on the heap or, when created through open(),
+ * in a memory-mapped file. In the latter case the ring data as well as the
+ * write position, size and the entry in progress live in the mapping, so
+ * every add() directly updates the file and a restarted service picks up the
+ * history where it was left off. Files of an older layout version start
+ * out empty.
+ * 
+ * Alternatively, a history created through createCompressed() keeps every
+ * sample of its horizon in a CompressedHistory instead of the rings, and
+ * serves the same resolutions as views aggregated from it on demand. Both
+ * backends are read through the HistorySeries interface.
+ * 
+ * A history is written by a single thread and may be read concurrently by
+ * another. Writes are bracketed by a sequence counter, which is odd while
+ * an add() is in progress, so that a reader can detect that it may have
+ * seen a partial update by comparing getSequence() before and after.
+ */
 public class HistoryBuffer {
+	final static private String TAG = "HistoryBuffer";
+	
+	// file layout: header followed by the rings, each with its own header
+	final static private int MAGIC = 0x4e4d4842; // "NMHB"
+	final static private int VERSION = 2;
+	final static private int FILE_MAGIC = 0;
+	final static private int FILE_VERSION = 1;
+	final static private int FILE_TIME_HI = 2;
+	final static private int FILE_TIME_LO = 3;
+	final static private int FILE_HEADER_SIZE = 4;
+	
+	final static private int RING_CAPACITY = 0;
+	final static private int RING_SAMPLE_RATE = 1;
+	final static private int RING_SIZE = 2;
+	final static private int RING_WRITE_POS = 3;
+	final static private int RING_INPUTS = 4;
+	final static private int RING_MIN = 5;
+	final static private int RING_MAX = 6;
+	final static private int RING_COUNT = 7;
+	final static private int RING_SUM_HI = 8;
+	final static private int RING_SUM_LO = 9;
+	final static private int RING_HEADER_SIZE = 10;
+	// ring entries follow the ring header as arrays of min, max, count
+	// and sum, the latter taking 2 ints per entry
+	final static private int ENTRY_SIZE = 5;
+	
+	// entries per level and entries of the level below per entry
+	final static private int[] CAPACITIES = {720, 360, 720, 1440, 366};
+	final static private int[] FACTORS = {1, 12, 2, 15, 48};
 
-	private CircularBuffer mHourly;
-	private CircularBuffer mSixHours;
-	private CircularBuffer mDaily;
+	// finest level first, the rings or the views of the compressed archive
+	final private HistorySeries[] mLevels = new HistorySeries[CAPACITIES.length];
+	private CircularBuffer mFinest = null;
+	private CompressedHistory mArchive = null;
+	
+	// file header, only set for a memory-mapped history
+	private IntBuffer mFileHeader = null;
+	private MappedByteBuffer mMap = null;
 	
-	class CircularBuffer {
-		final private double EMA_FILTER = 0.5;
-		private int[] mData;
+	private volatile int mSequence = 0;
+	
+	/**
+	 * One level of the history, a ring of aggregated entries.
+	 * 
+	 * Each entry keeps the minimum, maximum, sum and count of the samples
+	 * it covers in parallel buffers, so that averages are exact and short
+	 * peaks survive in the maximum at every level.
+	 */
+	class CircularBuffer implements HistorySeries {
+		final private IntBuffer mHeader;
+		final private IntBuffer mMin;
+		final private IntBuffer mMax;
+		final private IntBuffer mCount;
+		final private LongBuffer mSum;
+		// views for bulk reads, which move the position
+		final private IntBuffer mReadMin;
+		final private IntBuffer mReadMax;
+		final private IntBuffer mReadCount;
+		final private LongBuffer mReadSum;
+		private long[] mSumScratch = null;
+		private int[] mCountScratch = null;
 		final private int mCapacity;
+		final private int mFactor;
 		final private int mSampleRate;
+		final private CircularBuffer mNext;
 		private int mSize=0;
 		private int mWritePos= 0;
-		private int mSum;
-		private int mSampleCount;
-		private double mEMA = 0;
+		// entries added since creation, counting the entries resumed from
+		// a stored ring, which number the entries for drawing
+		private volatile int mVersion = 0;
+		
+		// aggregate of the entry in progress and the number of inputs in it
+		private int mInputs;
+		private int mPartialMin;
+		private int mPartialMax;
+		private int mPartialCount;
+		private long mPartialSum;
+		
+		// Max segment tree over the maxima at the ring positions, leaves at
+		// mMaxTree[mCapacity + pos]. Kept on the heap and rebuilt from the
+		// data when resuming a stored ring.
+		final private int[] mMaxTree;
 
 
 
-		public CircularBuffer(int size, int sampling) 
+		public CircularBuffer(int size, int factor, int sampling,
+				CircularBuffer next) 
 		{
-			mData = new int[size];
+			this(size, factor, sampling, next,
+					IntBuffer.allocate(RING_HEADER_SIZE), IntBuffer.allocate(size),
+					IntBuffer.allocate(size), IntBuffer.allocate(size),
+					LongBuffer.allocate(size));
+		}
+		
+		/**
+		 * Create a ring on top of the given header and entry storage. If the
+		 * header matches the ring geometry, the state stored there is
+		 * resumed, otherwise the ring starts out empty.
+		 * 
+		 * @param factor number of inputs aggregated into one entry
+		 * @param sampling number of samples covered by one entry
+		 * @param next coarser level fed with the completed entries or null
+		 */
+		public CircularBuffer(int size, int factor, int sampling,
+				CircularBuffer next, IntBuffer header,
+				IntBuffer min, IntBuffer max, IntBuffer count, LongBuffer sum) {
+			mHeader = header;
+			mMin = min;
+			mMax = max;
+			mCount = count;
+			mSum = sum;
+			mReadMin = min.duplicate();
+			mReadMax = max.duplicate();
+			mReadCount = count.duplicate();
+			mReadSum = sum.duplicate();
 			mCapacity = size;
+			mFactor = factor;
 			mSampleRate = sampling;
-			mSum = 0;
-			mSampleCount = 0;
+			mNext = next;
+			mMaxTree = new int[size * 2];
+			if (header.get(RING_CAPACITY) == size
+					&& header.get(RING_SAMPLE_RATE) == sampling) {
+				mSize = header.get(RING_SIZE);
+				mVersion = mSize;
+				mWritePos = header.get(RING_WRITE_POS);
+				mInputs = header.get(RING_INPUTS);
+				mPartialMin = header.get(RING_MIN);
+				mPartialMax = header.get(RING_MAX);
+				mPartialCount = header.get(RING_COUNT);
+				mPartialSum = ((long)header.get(RING_SUM_HI) << 32)
+						| (header.get(RING_SUM_LO) & 0xffffffffL);
+				if (mInputs < 0 || mInputs >= factor) {
+					clearPartial();
+				}
+				for (int i = 0; i < mSize; ++i) {
+					mMaxTree[size + i] = max.get(i);
+				}
+				for (int i = size - 1; i > 0; --i) {
+					mMaxTree[i] = Math.max(mMaxTree[2 * i], mMaxTree[2 * i + 1]);
+				}
+			} else {
+				clearPartial();
+				header.put(RING_CAPACITY, size);
+				header.put(RING_SAMPLE_RATE, sampling);
+				saveState();
+			}
 		}
 		
-		final public void add(int element) {
-			mSum += element;
-			if (++mSampleCount < mSampleRate) return;
-			mEMA = (1.0 - EMA_FILTER) * mEMA + EMA_FILTER * (mSum / mSampleRate);
+		/**
+		 * Add one input, a sample for the finest level or an entry completed
+		 * by the level below.
+		 */
+		final public void add(int min, int max, long sum, int count) {
+			merge(min, max, sum, count);
+			if (++mInputs == mFactor) {
+				complete();
+			}
+			saveState();
+		}
+		
+		/**
+		 * Add a run of inputs of the same value, as recorded for a sample
+		 * covering several ticks or for padding.
+		 * 
+		 * @param inputs number of inputs
+		 * @param input_count number of samples covered by each input
+		 */
+		final public void addRun(int value, int inputs, int input_count) {
+			// complete the entry in progress
+			if (mInputs > 0) {
+				int n = Math.min(inputs, mFactor - mInputs);
+				merge(value, value, (long)value * n * input_count, n * input_count);
+				mInputs += n;
+				inputs -= n;
+				if (mInputs == mFactor) {
+					complete();
+				}
+			}
+			// whole entries of the constant input
+			int entries = inputs / mFactor;
+			if (entries > 0) {
+				int count = mFactor * input_count;
+				int stored = entries;
+				if (entries > mCapacity) {
+					// entries which would be overwritten right away
+					mWritePos = (mWritePos + entries - mCapacity) % mCapacity;
+					mVersion += entries - mCapacity;
+					stored = mCapacity;
+				}
+				for (int i = 0; i < stored; ++i) {
+					store(value, value, (long)value * count, count);
+				}
+				if (mNext != null) {
+					mNext.addRun(value, entries, count);
+				}
+			}
+			int rest = inputs % mFactor;
+			if (rest > 0) {
+				merge(value, value, (long)value * rest * input_count, rest * input_count);
+				mInputs += rest;
+			}
+			saveState();
+		}
+		
+		private void merge(int min, int max, long sum, int count) {
+			mPartialMin = Math.min(mPartialMin, min);
+			mPartialMax = Math.max(mPartialMax, max);
+			mPartialSum += sum;
+			mPartialCount += count;
+		}
+		
+		private void complete() {
+			store(mPartialMin, mPartialMax, mPartialSum, mPartialCount);
+			if (mNext != null) {
+				mNext.add(mPartialMin, mPartialMax, mPartialSum, mPartialCount);
+			}
+			clearPartial();
+		}
+		
+		private void clearPartial() {
+			mInputs = 0;
+			mPartialMin = Integer.MAX_VALUE;
+			mPartialMax = Integer.MIN_VALUE;
+			mPartialSum = 0;
+			mPartialCount = 0;
+		}
+		
+		private void store(int min, int max, long sum, int count) {
+			mMin.put(mWritePos, min);
+			mMax.put(mWritePos, max);
+			mSum.put(mWritePos, sum);
+			mCount.put(mWritePos, count);
+			updateMax(mWritePos, max);
 			if (mSize < mCapacity) {
-				mData[mWritePos] = (int)mEMA;
 				++mSize;
-			} else {
-				mData[mWritePos] = (int)mEMA;
 			}
 			++mWritePos;
 			mWritePos %= mCapacity;
-			mSum = 0;
-			mSampleCount = 0;
+			++mVersion;
 		}
 		
+		private void saveState() {
+			mHeader.put(RING_SIZE, mSize);
+			mHeader.put(RING_WRITE_POS, mWritePos);
+			mHeader.put(RING_INPUTS, mInputs);
+			mHeader.put(RING_MIN, mPartialMin);
+			mHeader.put(RING_MAX, mPartialMax);
+			mHeader.put(RING_COUNT, mPartialCount);
+			mHeader.put(RING_SUM_HI, (int)(mPartialSum >>> 32));
+			mHeader.put(RING_SUM_LO, (int)mPartialSum);
+		}
+		
+		/**
+		 * @return exact average of the entry the given number of steps
+		 * 	before the most recent one
+		 */
 		final public int lookBack(int steps) {
 			if (mSize == 0) return 0;
+			int pos = position(steps);
+			int count = mCount.get(pos);
+			return count == 0 ? 0 : (int)(mSum.get(pos) / count);
+		}
+		
+		final public int lookBackMin(int steps) {
+			if (mSize == 0) return 0;
+			return mMin.get(position(steps));
+		}
+		
+		final public int lookBackMax(int steps) {
+			if (mSize == 0) return 0;
+			return mMax.get(position(steps));
+		}
+		
+		final public int getVersion() {
+			return mVersion;
+		}
+		
+		/**
+		 * Bulk copy of the most recent entries, used by the graph. Readers
+		 * are serialized on the ring, the writer is not affected.
+		 */
+		final public synchronized int copyRecent(int count, int[] avg,
+				int[] min, int[] max) {
+			count = Math.min(count, mSize);
+			int start = (mWritePos - count + mCapacity) % mCapacity;
+			if (mSumScratch == null) {
+				mSumScratch = new long[mCapacity];
+				mCountScratch = new int[mCapacity];
+			}
+			copy(mReadSum, start, count, mSumScratch);
+			copy(mReadCount, start, count, mCountScratch);
+			for (int i = 0; i < count; ++i) {
+				avg[i] = mCountScratch[i] == 0 ? 0
+						: (int)(mSumScratch[i] / mCountScratch[i]);
+			}
+			if (min != null) {
+				copy(mReadMin, start, count, min);
+			}
+			if (max != null) {
+				copy(mReadMax, start, count, max);
+			}
+			return count;
+		}
+		
+		private void copy(IntBuffer src, int start, int count, int[] dest) {
+			int first = Math.min(count, mCapacity - start);
+			src.position(start);
+			src.get(dest, 0, first);
+			if (count > first) {
+				src.position(0);
+				src.get(dest, first, count - first);
+			}
+		}
+		
+		private void copy(LongBuffer src, int start, int count, long[] dest) {
+			int first = Math.min(count, mCapacity - start);
+			src.position(start);
+			src.get(dest, 0, first);
+			if (count > first) {
+				src.position(0);
+				src.get(dest, first, count - first);
+			}
+		}
+		
+		private int position(int steps) {
 			if (steps > mWritePos - 1) {
-				return mData[mCapacity - (steps - (mWritePos - 1))];
+				return mCapacity - (steps - (mWritePos - 1));
 			} else {
-				return mData[mWritePos -1  - steps];
+				return mWritePos -1  - steps;
 			}
 		}
 		
@@ -76,14 +400,66 @@ public class HistoryBuffer {
 			return mCapacity;
 		}
 		
+		/**
+		 * @return number of samples aggregated into one entry
+		 */
+		final public int getSampleRate() {
+			return mSampleRate;
+		}
+		
+		/**
+		 * Maximum over the most recent entries, answered from the segment
+		 * tree in O(log n).
+		 * 
+		 * @param window number of most recent entries to consider
+		 * @return maximum sample value, but at least 0
+		 */
 		final public int getMax(int window) {
-			int max = 0;
-			if (window >= mSize) {
-				window = mSize -1;
+			if (window > mSize) {
+				window = mSize;
+			}
+			if (window <= 0) return 0;
+			int start = mWritePos - window;
+			if (start >= 0) {
+				return queryMax(start, mWritePos);
 			}
-			for (int i = 0; i < window; ++i) {
-				if ( lookBack(i) > max) {
-					max = lookBack(i);
+			return Math.max(queryMax(start + mCapacity, mCapacity),
+					queryMax(0, mWritePos));
+		}
+		
+		/**
+		 * @return number of samples covered by the entries held and the
+		 * 	entry in progress
+		 */
+		final public long getCoverage() {
+			return (long)mSize * mSampleRate + mPartialCount;
+		}
+		
+		/**
+		 * @return bytes taken by the entries, in the file or on the heap,
+		 * 	and the max tree
+		 */
+		final public long getMemoryUsage() {
+			return mCapacity * (ENTRY_SIZE * 4L + 8);
+		}
+		
+		private void updateMax(int pos, int value) {
+			pos += mCapacity;
+			mMaxTree[pos] = value;
+			for (pos >>= 1; pos > 0; pos >>= 1) {
+				mMaxTree[pos] = Math.max(mMaxTree[2 * pos], mMaxTree[2 * pos + 1]);
+			}
+		}
+		
+		// maximum over ring positions [from, to)
+		private int queryMax(int from, int to) {
+			int max = 0;
+			for (from += mCapacity, to += mCapacity; from < to; from >>= 1, to >>= 1) {
+				if ((from & 1) == 1) {
+					max = Math.max(max, mMaxTree[from++]);
+				}
+				if ((to & 1) == 1) {
+					max = Math.max(max, mMaxTree[--to]);
 				}
 			}
 			return max;
@@ -91,34 +467,278 @@ public class HistoryBuffer {
 	}
 	
 	public HistoryBuffer() {
-		mHourly = new CircularBuffer(720, 1);
-		mSixHours = new CircularBuffer(360, 12);
-		mDaily = new CircularBuffer(720, 24);
+		CircularBuffer next = null;
+		for (int i = mLevels.length - 1; i >= 0; --i) {
+			next = new CircularBuffer(CAPACITIES[i], FACTORS[i],
+					getSampleRate(i), next);
+			mLevels[i] = next;
+		}
+		mFinest = next;
+	}
+	
+	private HistoryBuffer(CompressedHistory archive) {
+		mArchive = archive;
+		for (int i = 0; i < mLevels.length; ++i) {
+			mLevels[i] = new CompressedSeries(archive, CAPACITIES[i],
+					getSampleRate(i));
+		}
+	}
+	
+	/**
+	 * Create an in-memory history which keeps all samples of the given
+	 * horizon in compressed form.
+	 * 
+	 * @param horizon number of samples to keep
+	 */
+	public static HistoryBuffer createCompressed(int horizon) {
+		return new HistoryBuffer(new CompressedHistory(horizon));
+	}
+	
+	/**
+	 * Create a history backed by a memory-mapped file, resuming the
+	 * history stored there if the file is valid.
+	 */
+	private HistoryBuffer(MappedByteBuffer map) {
+		mMap = map;
+		map.order(ByteOrder.nativeOrder());
+		mFileHeader = slice(map, 0, FILE_HEADER_SIZE);
+		boolean valid = mFileHeader.get(FILE_MAGIC) == MAGIC
+				&& mFileHeader.get(FILE_VERSION) == VERSION;
+		if (!valid) {
+			mFileHeader.put(FILE_MAGIC, MAGIC);
+			mFileHeader.put(FILE_VERSION, VERSION);
+			setLastUpdateTime(0);
+		}
+		// rings are laid out finest first, but created coarsest first so
+		// that each can be linked to the next
+		int[] offsets = new int[mLevels.length];
+		int offset = FILE_HEADER_SIZE;
+		for (int i = 0; i < mLevels.length; ++i) {
+			offsets[i] = offset;
+			offset += RING_HEADER_SIZE + CAPACITIES[i] * ENTRY_SIZE;
+		}
+		CircularBuffer next = null;
+		for (int i = mLevels.length - 1; i >= 0; --i) {
+			IntBuffer header = slice(map, offsets[i], RING_HEADER_SIZE);
+			if (!valid) {
+				header.put(RING_CAPACITY, 0);
+			}
+			int capacity = CAPACITIES[i];
+			int entries = offsets[i] + RING_HEADER_SIZE;
+			next = new CircularBuffer(capacity, FACTORS[i], getSampleRate(i),
+					next, header,
+					slice(map, entries, capacity),
+					slice(map, entries + capacity, capacity),
+					slice(map, entries + capacity * 2, capacity),
+					sliceLong(map, entries + capacity * 3, capacity));
+			mLevels[i] = next;
+		}
+		mFinest = next;
+	}
+	
+	/**
+	 * @return number of samples aggregated into one entry of the given level
+	 */
+	private static int getSampleRate(int level) {
+		int rate = 1;
+		for (int i = 0; i <= level; ++i) {
+			rate *= FACTORS[i];
+		}
+		return rate;
+	}
+	
+	/**
+	 * Open a history stored in the given file, creating it if necessary.
+	 * 
+	 * The time the service was not running is padded with idle samples,
+	 * so that the history stays aligned with the wall clock. If the file
+	 * cannot be mapped, an in-memory history is returned. Files written
+	 * with fewer levels are extended, keeping the levels they have.
+	 * 
+	 * @param sampling_interval in seconds
+	 */
+	public static HistoryBuffer open(File file, int sampling_interval) {
+		int size = FILE_HEADER_SIZE;
+		for (int i = 0; i < CAPACITIES.length; ++i) {
+			size += RING_HEADER_SIZE + CAPACITIES[i] * ENTRY_SIZE;
+		}
+		HistoryBuffer history;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				// the mapping stays valid after the channel is closed
+				history = new HistoryBuffer(raf.getChannel().map(
+						FileChannel.MapMode.READ_WRITE, 0, size * 4));
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not map " + file + ", keeping history in memory");
+			return new HistoryBuffer();
+		}
+		long last_update = history.getLastUpdateTime();
+		long now = System.currentTimeMillis();
+		if (last_update > 0 && now > last_update) {
+			long padding = (now - last_update) / (sampling_interval * 1000);
+			int last = CAPACITIES.length - 1;
+			history.pad((int)Math.min(padding,
+					(long)CAPACITIES[last] * getSampleRate(last)));
+		}
+		return history;
+	}
+	
+	/**
+	 * Write a memory-mapped history back to its file, once the series it
+	 * records is no longer sampled. The file is kept, so that open() picks
+	 * the history up again, padded for the time in between.
+	 */
+	public void close() {
+		if (mMap != null) {
+			mMap.force();
+		}
+	}
+	
+	/**
+	 * @param sampling_interval in seconds
+	 * @return time covered by the coarsest level, after which nothing of a
+	 * 	history not updated in the meantime is left
+	 */
+	public static long getHorizonMillis(int sampling_interval) {
+		int last = CAPACITIES.length - 1;
+		return (long)CAPACITIES[last] * getSampleRate(last)
+				* sampling_interval * 1000;
+	}
+	
+	/**
+	 * @return wall clock time of the last sample stored in the backing
+	 * 	file or 0 if not known
+	 */
+	public long getLastUpdateTime() {
+		if (mFileHeader == null) return 0;
+		return ((long)mFileHeader.get(FILE_TIME_HI) << 32)
+			| (mFileHeader.get(FILE_TIME_LO) & 0xffffffffL);
+	}
+	
+	private void setLastUpdateTime(long time) {
+		mFileHeader.put(FILE_TIME_HI, (int)(time >>> 32));
+		mFileHeader.put(FILE_TIME_LO, (int)time);
+	}
+	
+	private static LongBuffer sliceLong(ByteBuffer map, int offset, int length) {
+		map.limit((offset + length * 2) * 4);
+		map.position(offset * 4);
+		LongBuffer result = map.slice().order(ByteOrder.nativeOrder()).asLongBuffer();
+		map.clear();
+		return result;
+	}
+	
+	private static IntBuffer slice(ByteBuffer map, int offset, int length) {
+		map.limit((offset + length) * 4);
+		map.position(offset * 4);
+		IntBuffer result = map.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+		map.clear();
+		return result;
 	}
 	
 	public void add(int element) {
-		mHourly.add(element);
-		mSixHours.add(element);	
-		mDaily.add(element);
+		add(element, 1);
+	}
+	
+	/**
+	 * Record a value which held over several base sampling intervals, as
+	 * measured by a sample taken after a longer interval.
+	 * 
+	 * @param ticks number of base sampling intervals covered
+	 */
+	public void add(int element, int ticks) {
+		++mSequence;
+		if (mArchive != null) {
+			mArchive.add(element, ticks);
+		} else if (ticks == 1) {
+			mFinest.add(element, element, element, 1);
+		} else {
+			mFinest.addRun(element, ticks, 1);
+		}
+		if (mFileHeader != null) {
+			setLastUpdateTime(System.currentTimeMillis());
+		}
+		++mSequence;
+	}
+	
+	/**
+	 * @return write sequence number, odd while an update is in progress
+	 */
+	public int getSequence() {
+		return mSequence;
 	}	
 	
 	public void pad(int count) {
-		for (int i=0; i < count; i++) {
-			add(0);
+		add(0, count);
+	}
+	
+	/**
+	 * @return number of levels, from finest to coarsest
+	 */
+	public int getLevelCount() {
+		return mLevels.length;
+	}
+	
+	public HistorySeries getLevel(int level) {
+		return mLevels[level];
+	}
+	
+	/**
+	 * @return bytes taken by all levels, and by the archive they are
+	 * 	aggregated from if compressed
+	 */
+	public long getMemoryUsage() {
+		long bytes = mArchive != null ? mArchive.getMemoryUsage() : 0;
+		for (int i = 0; i < mLevels.length; ++i) {
+			bytes += mLevels[i].getMemoryUsage();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * @return number of the most recent samples held at full resolution
+	 */
+	public long getSampleSpan() {
+		if (mArchive != null) {
+			return mArchive.getSampleCount() - mArchive.getFirstSample();
+		}
+		return mLevels[0].getSize();
+	}
+	
+	/**
+	 * @return number of samples back to the oldest entry held at any
+	 * 	level, so that a history created later can be padded to line up
+	 * 	with this one
+	 */
+	public long getCoverage() {
+		if (mArchive != null) {
+			return mArchive.getSampleCount() - mArchive.getFirstSample();
+		}
+		long coverage = 0;
+		for (CircularBuffer level = mFinest; level != null; level = level.mNext) {
+			coverage = Math.max(coverage, level.getCoverage());
 		}
+		return coverage;
 	}
 	
-	public CircularBuffer getData(int resolution) {
+	/**
+	 * @return level backing the given graph resolution
+	 */
+	public HistorySeries getData(int resolution) {
 		switch (resolution) {
 		case 0:
 		case 1:
 		case 2:
-			return mHourly;
+			return mLevels[0];
 		case 3:
 		case 4:
-			return mSixHours;
+			return mLevels[1];
 		default:
-			return mDaily;
+			return mLevels[2];
 		}
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the contents of a set of histories, at every level, to CSV or to
+ * a compact binary file.
+ *
+ * Output is formatted directly into one reused direct buffer, which is
+ * flushed to a FileChannel whenever it fills up, so memory use does not
+ * depend on the number of series exported. Each level is first copied into
+ * reused arrays, retrying while the collector thread writes to the history,
+ * so that every level is exported consistently without ever holding up the
+ * collector.
+ *
+ * CSV has one row per entry, oldest entry of each level first:
+ *
+ *   series,level,seconds_per_entry,age_seconds,avg,min,max
+ *
+ * where age_seconds is the time from the end of the entry to the end of
+ * the most recent entry of the level.
+ *
+ * The binary format is big endian: magic "NMEX", version, sampling interval
+ * in seconds and number of series as ints. Each series follows as name
+ * length (short) and ASCII name, number of levels (int) and per level the
+ * samples per entry and number of entries (ints), followed by avg, min and
+ * max (ints) of every entry, oldest first.
+ */
+class HistoryExporter {
+	final static private int MAGIC = 0x4e4d4558; // "NMEX"
+	final static private int VERSION = 1;
+	final static private int BUFFER_SIZE = 64 * 1024;
+	// longest CSV row, excluding the series name
+	final static private int MAX_ROW = 96;
+	final static private int MAX_ATTEMPTS = 10;
+	final static private String CSV_HEADER =
+		"series,level,seconds_per_entry,age_seconds,avg,min,max\n";
+
+	final private int mSamplingInterval;
+	final private ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	final private byte[] mDigits = new byte[20];
+	private FileChannel mChannel;
+
+	// consistent copy of the level being exported, oldest entry first
+	private int[] mAvg = new int[0];
+	private int[] mMin = new int[0];
+	private int[] mMax = new int[0];
+
+	/**
+	 * @param sampling_interval base sampling interval in seconds
+	 */
+	HistoryExporter(int sampling_interval) {
+		mSamplingInterval = sampling_interval;
+	}
+
+	public void writeCsv(File file, String[] names, HistoryBuffer[] histories)
+			throws IOException {
+		open(file);
+		try {
+			putAscii(CSV_HEADER);
+			for (int i = 0; i < histories.length; ++i) {
+				HistoryBuffer history = histories[i];
+				for (int level = 0; level < history.getLevelCount(); ++level) {
+					int size = copyLevel(history, level);
+					long seconds = (long)history.getLevel(level).getSampleRate()
+							* mSamplingInterval;
+					for (int entry = 0; entry < size; ++entry) {
+						reserve(names[i].length() + MAX_ROW);
+						putAscii(names[i]);
+						putCsvValue(level);
+						putCsvValue(seconds);
+						putCsvValue((size - 1 - entry) * seconds);
+						putCsvValue(mAvg[entry]);
+						putCsvValue(mMin[entry]);
+						putCsvValue(mMax[entry]);
+						mBuffer.put((byte)'\n');
+					}
+				}
+			}
+		} finally {
+			close();
+		}
+	}
+
+	public void writeBinary(File file, String[] names, HistoryBuffer[] histories)
+			throws IOException {
+		open(file);
+		try {
+			reserve(16);
+			mBuffer.putInt(MAGIC);
+			mBuffer.putInt(VERSION);
+			mBuffer.putInt(mSamplingInterval);
+			mBuffer.putInt(histories.length);
+			for (int i = 0; i < histories.length; ++i) {
+				HistoryBuffer history = histories[i];
+				reserve(6 + names[i].length());
+				mBuffer.putShort((short)names[i].length());
+				putAscii(names[i]);
+				mBuffer.putInt(history.getLevelCount());
+				for (int level = 0; level < history.getLevelCount(); ++level) {
+					int size = copyLevel(history, level);
+					reserve(8);
+					mBuffer.putInt(history.getLevel(level).getSampleRate());
+					mBuffer.putInt(size);
+					for (int entry = 0; entry < size; ++entry) {
+						reserve(12);
+						mBuffer.putInt(mAvg[entry]);
+						mBuffer.putInt(mMin[entry]);
+						mBuffer.putInt(mMax[entry]);
+					}
+				}
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Copy a level into the arrays, retrying if the history was written
+	 * in the meantime. The writer does not wait for readers, so a level
+	 * which keeps changing under the copy fails the export rather than
+	 * being written inconsistently.
+	 *
+	 * @return number of entries copied
+	 */
+	private int copyLevel(HistoryBuffer history, int level) throws IOException {
+		HistorySeries series = history.getLevel(level);
+		int capacity = series.getCapacity();
+		if (mAvg.length < capacity) {
+			mAvg = new int[capacity];
+			mMin = new int[capacity];
+			mMax = new int[capacity];
+		}
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+			int sequence = history.getSequence();
+			int size = series.copyRecent(capacity, mAvg, mMin, mMax);
+			if ((sequence & 1) == 0 && sequence == history.getSequence()) {
+				return size;
+			}
+			Thread.yield();
+		}
+		throw new IOException("History level " + level + " kept changing, "
+				+ MAX_ATTEMPTS + " attempts to copy it failed");
+	}
+
+	private void open(File file) throws IOException {
+		mChannel = new FileOutputStream(file).getChannel();
+		mBuffer.clear();
+	}
+
+	private void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			mChannel.close();
+			mChannel = null;
+		}
+	}
+
+	private void reserve(int bytes) throws IOException {
+		if (mBuffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	private void flush() throws IOException {
+		mBuffer.flip();
+		while (mBuffer.hasRemaining()) {
+			mChannel.write(mBuffer);
+		}
+		mBuffer.clear();
+	}
+
+	private void putAscii(String text) throws IOException {
+		for (int i = 0; i < text.length(); ++i) {
+			reserve(1);
+			mBuffer.put((byte)text.charAt(i));
+		}
+	}
+
+	private void putCsvValue(long value) {
+		mBuffer.put((byte)',');
+		if (value < 0) {
+			mBuffer.put((byte)'-');
+			value = -value;
+		}
+		int pos = mDigits.length;
+		do {
+			mDigits[--pos] = (byte)('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		mBuffer.put(mDigits, pos, mDigits.length - pos);
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+/**
+ * Read access to one resolution of a history, as used by the graph.
+ *
+ * Entries are addressed backwards from the most recent one. Each entry
+ * aggregates getSampleRate() samples into their minimum, maximum and
+ * average.
+ */
+interface HistorySeries {
+	/**
+	 * @return number of entries available
+	 */
+	public int getSize();
+
+	/**
+	 * @return maximum number of entries kept
+	 */
+	public int getCapacity();
+
+	/**
+	 * @return number of samples aggregated into one entry
+	 */
+	public int getSampleRate();
+
+	/**
+	 * @return average of the entry the given number of steps before the
+	 * 	most recent one
+	 */
+	public int lookBack(int steps);
+
+	public int lookBackMin(int steps);
+
+	public int lookBackMax(int steps);
+
+	/**
+	 * @return number of entries added, at least getSize(), so that the
+	 * 	newest entry is entry getVersion() - 1 and the oldest one still
+	 * 	held is entry getVersion() - getSize()
+	 */
+	public int getVersion();
+
+	/**
+	 * Copy the most recent entries in bulk, oldest first.
+	 *
+	 * @param count maximum number of entries to copy
+	 * @param min destination for the minima or null if not needed
+	 * @param max destination for the maxima or null if not needed
+	 * @return number of entries copied
+	 */
+	public int copyRecent(int count, int[] avg, int[] min, int[] max);
+
+	/**
+	 * @param window number of most recent entries to consider
+	 * @return maximum sample value, but at least 0
+	 */
+	public int getMax(int window);
+
+	/**
+	 * @return bytes taken by the entries, whether held or aggregated on
+	 * 	demand
+	 */
+	public long getMemoryUsage();
+}
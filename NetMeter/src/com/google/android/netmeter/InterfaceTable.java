@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+/**
+ * Registry of the network interfaces found in /proc/net/dev.
+ *
+ * Each interface is assigned a small integer id which stays stable for as
+ * long as the interface exists, so that per-interface state can be kept in
+ * arrays indexed by id. Names are looked up directly from the bytes of the
+ * scan buffer through an open-addressing hash table with linear probing,
+ * which keeps the lookup O(1) per line without creating Strings.
+ *
+ * Ids of interfaces which have disappeared are recycled for new ones.
+ * Removing interfaces costs a single rehash of the slot table. The version
+ * changes with every addition or removal, so that the display can tell
+ * when an id has come to stand for another interface.
+ */
+class InterfaceTable {
+	final private int INITIAL_CAPACITY = 8;
+
+	// slot table: id + 1 of the interface hashed there, 0 for empty
+	private int[] mSlots = new int[INITIAL_CAPACITY * 2];
+
+	// per-id state
+	private byte[][] mNames = new byte[INITIAL_CAPACITY][];
+	private String[] mLabels = new String[INITIAL_CAPACITY];
+	private int[] mHashes = new int[INITIAL_CAPACITY];
+	private int[] mLastSeen = new int[INITIAL_CAPACITY];
+	private long[] mRxBytes = new long[INITIAL_CAPACITY];
+	private long[] mTxBytes = new long[INITIAL_CAPACITY];
+
+	private int[] mFreeIds = new int[INITIAL_CAPACITY];
+	private int mFreeCount = 0;
+	private int mLimit = 0;
+	private int mCount = 0;
+	private int mVersion = 0;
+
+	/**
+	 * @return id of the interface with the given name or -1 if unknown
+	 */
+	public int find(byte[] buf, int start, int len) {
+		int hash = hash(buf, start, len);
+		int mask = mSlots.length - 1;
+		for (int slot = hash & mask; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+			int id = mSlots[slot] - 1;
+			if (mHashes[id] == hash && nameEquals(id, buf, start, len)) {
+				return id;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Register a new interface, which must not already be in the table.
+	 *
+	 * @return id assigned to the new interface
+	 */
+	public int add(byte[] buf, int start, int len) {
+		int id;
+		if (mFreeCount > 0) {
+			id = mFreeIds[--mFreeCount];
+		} else {
+			if (mLimit == mNames.length) {
+				growIds();
+			}
+			id = mLimit++;
+		}
+		byte[] name = new byte[len];
+		System.arraycopy(buf, start, name, 0, len);
+		mNames[id] = name;
+		mLabels[id] = new String(name);
+		mHashes[id] = hash(buf, start, len);
+		mRxBytes[id] = 0;
+		mTxBytes[id] = 0;
+		++mCount;
+		++mVersion;
+		if (mCount * 2 > mSlots.length) {
+			rehash(mSlots.length * 2);
+		} else {
+			insert(id);
+		}
+		return id;
+	}
+
+	/**
+	 * Remove all interfaces which have not been marked with the given
+	 * generation through setCounters().
+	 *
+	 * @return number of interfaces removed
+	 */
+	public int removeStale(int generation) {
+		int removed = 0;
+		for (int id = 0; id < mLimit; ++id) {
+			if (mNames[id] != null && mLastSeen[id] != generation) {
+				mNames[id] = null;
+				mLabels[id] = null;
+				mFreeIds[mFreeCount++] = id;
+				++removed;
+			}
+		}
+		if (removed > 0) {
+			mCount -= removed;
+			++mVersion;
+			rehash(mSlots.length);
+		}
+		return removed;
+	}
+
+	/**
+	 * Record the latest counter values of an interface and mark it as
+	 * present in the given scan generation.
+	 */
+	public void setCounters(int id, long rx_bytes, long tx_bytes, int generation) {
+		mRxBytes[id] = rx_bytes;
+		mTxBytes[id] = tx_bytes;
+		mLastSeen[id] = generation;
+	}
+
+	/**
+	 * @return one past the highest id currently in use
+	 */
+	public int getLimit() {
+		return mLimit;
+	}
+
+	/**
+	 * @return version of the set of interfaces and their ids
+	 */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public boolean isActive(int id) {
+		return id < mLimit && mNames[id] != null;
+	}
+
+	public String getName(int id) {
+		return mLabels[id];
+	}
+
+	public long getRxBytes(int id) {
+		return mRxBytes[id];
+	}
+
+	public long getTxBytes(int id) {
+		return mTxBytes[id];
+	}
+
+	private boolean nameEquals(int id, byte[] buf, int start, int len) {
+		byte[] name = mNames[id];
+		if (name.length != len) return false;
+		for (int i = 0; i < len; ++i) {
+			if (name[i] != buf[start + i]) return false;
+		}
+		return true;
+	}
+
+	private void insert(int id) {
+		int mask = mSlots.length - 1;
+		int slot = mHashes[id] & mask;
+		while (mSlots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		mSlots[slot] = id + 1;
+	}
+
+	private void rehash(int capacity) {
+		mSlots = new int[capacity];
+		for (int id = 0; id < mLimit; ++id) {
+			if (mNames[id] != null) {
+				insert(id);
+			}
+		}
+	}
+
+	private void growIds() {
+		int capacity = mNames.length * 2;
+		byte[][] names = new byte[capacity][];
+		System.arraycopy(mNames, 0, names, 0, mLimit);
+		mNames = names;
+		String[] labels = new String[capacity];
+		System.arraycopy(mLabels, 0, labels, 0, mLimit);
+		mLabels = labels;
+		mHashes = grow(mHashes, capacity);
+		mLastSeen = grow(mLastSeen, capacity);
+		mFreeIds = grow(mFreeIds, capacity);
+		mRxBytes = grow(mRxBytes, capacity);
+		mTxBytes = grow(mTxBytes, capacity);
+	}
+
+	private int[] grow(int[] data, int capacity) {
+		int[] result = new int[capacity];
+		System.arraycopy(data, 0, result, 0, mLimit);
+		return result;
+	}
+
+	private long[] grow(long[] data, int capacity) {
+		long[] result = new long[capacity];
+		System.arraycopy(data, 0, result, 0, mLimit);
+		return result;
+	}
+
+	private static int hash(byte[] buf, int start, int len) {
+		int h = 0;
+		for (int i = start; i < start + len; ++i) {
+			h = 31 * h + buf[i];
+		}
+		// spread the low bits, since the table size is a power of two
+		return h ^ (h >>> 16) ^ (h >>> 7);
+	}
+}
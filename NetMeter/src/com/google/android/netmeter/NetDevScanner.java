@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.io.IOException;
+
+/**
+ * Byte level scanner for /proc/net/dev.
+ *
+ * The whole file is read through a ProcFile into a buffer which is kept
+ * across samples and the interface lines are then walked in place, pulling out the receive
+ * and transmit byte counters as primitive longs. No Strings or regular
+ * expressions are involved, so a steady-state sample does not generate
+ * any garbage once the buffer has grown to the size of the file.
+ *
+ * Usage: call read() once per sample and then next() until it returns
+ * false, inspecting the current interface line with the accessors.
+ */
+class NetDevScanner {
+	// column index of the counters after the "<name>:" prefix
+	final private int RX_BYTES_FIELD = 0;
+	final private int TX_BYTES_FIELD = 8;
+
+	private byte[] mBuffer;
+	private int mLength = 0;
+	private int mPos = 0;
+
+	// state of the current interface line
+	private int mNameStart;
+	private int mNameEnd;
+	private long mRxBytes;
+	private long mTxBytes;
+
+	/**
+	 * Re-read the contents of the given file and start scanning from the
+	 * first line.
+	 */
+	public void read(ProcFile file) throws IOException {
+		file.read();
+		mBuffer = file.getData();
+		mLength = file.getLength();
+		mPos = 0;
+	}
+
+	/**
+	 * Advance to the next interface line. Header lines, which do not contain
+	 * a ':' separator, are skipped.
+	 *
+	 * @return false when the end of the buffer has been reached
+	 */
+	public boolean next() {
+		while (mPos < mLength) {
+			int line_end = mPos;
+			int colon = -1;
+			while (line_end < mLength && mBuffer[line_end] != '\n') {
+				if (colon < 0 && mBuffer[line_end] == ':') {
+					colon = line_end;
+				}
+				++line_end;
+			}
+			int line_start = mPos;
+			mPos = line_end + 1;
+			if (colon < 0) continue;
+
+			while (line_start < colon && mBuffer[line_start] == ' ') {
+				++line_start;
+			}
+			mNameStart = line_start;
+			mNameEnd = colon;
+			mRxBytes = 0;
+			mTxBytes = 0;
+
+			int field = 0;
+			int i = colon + 1;
+			while (i < line_end && field <= TX_BYTES_FIELD) {
+				while (i < line_end && mBuffer[i] == ' ') ++i;
+				long value = 0;
+				while (i < line_end && mBuffer[i] >= '0' && mBuffer[i] <= '9') {
+					value = value * 10 + (mBuffer[i] - '0');
+					++i;
+				}
+				if (field == RX_BYTES_FIELD) {
+					mRxBytes = value;
+				} else if (field == TX_BYTES_FIELD) {
+					mTxBytes = value;
+				}
+				while (i < line_end && mBuffer[i] != ' ') ++i;
+				++field;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return scan buffer holding the name of the current interface
+	 */
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	public int getNameStart() {
+		return mNameStart;
+	}
+
+	public int getNameLength() {
+		return mNameEnd - mNameStart;
+	}
+
+	public long getRxBytes() {
+		return mRxBytes;
+	}
+
+	public long getTxBytes() {
+		return mTxBytes;
+	}
+}
@@ -16,6 +16,7 @@
 package com.google.android.netmeter;
 
 
+import java.io.File;
 import java.util.Vector;
 import android.app.Activity;
 import android.content.ComponentName;
@@ -23,6 +24,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.Gravity;
@@ -41,7 +43,7 @@ import android.widget.Toast;
  * 
  * Creates the display (table plus graph view) and connects to
  * the NetMeterService, starting it if necessary. Since the service
- * will directly update the display when it generates new data, references
+ * will update the display when it generates new data, references
  * of the display elements are passed to the service after binding.
  */
 public class NetMeter extends Activity {
@@ -55,6 +57,15 @@ public class NetMeter extends Activity {
 	//private PowerMon mPower;
 	
 	private GraphView mGraph;
+	private TableLayout mTable;
+	private int mFixedRows;
+	
+	private NetMeterService.InterfaceLayout mLayout =
+		new NetMeterService.InterfaceLayout() {
+			public void relayout(Snapshot snapshot) {
+				createInterfaceRows(snapshot);
+			}
+		};
 	
 	/**
 	 * Service connection callback object used to establish communication with 
@@ -66,8 +77,10 @@ public class NetMeter extends Activity {
         	// Get reference to (local) service from binder
             mService = ((NetMeterService.NetMeterBinder)service).getService();
             Log.i(TAG, "service connected");
-            // link up the display elements to be updated by the service
-            mService.setDisplay(mStatsFields, mInfoFields, mCpuFields, mGraph);
+            // link up the display elements to be updated by the service,
+            // which lays out the interface rows
+            mService.setDisplay(mStatsFields, mInfoFields, mCpuFields, mGraph,
+            		mLayout);
         }
 
         public void onServiceDisconnected(ComponentName className) {
@@ -119,6 +132,10 @@ public class NetMeter extends Activity {
     		String banner = mGraph.toggleScale();
     		Toast.makeText(this, banner, Toast.LENGTH_SHORT).show();
     		break;
+    	case R.id.export:
+    		mService.exportHistory(new File(
+    				Environment.getExternalStorageDirectory(), "netmeter"));
+    		break;
     	case R.id.top:
     		Intent intent = new Intent();
             intent.setClass(this, TaskList.class);
@@ -162,23 +179,42 @@ public class NetMeter extends Activity {
  
     /**
      *  Algorithmically generate the table on the top half of the screen,
-     *  which is used to display status and cummulative usage of
-     *  cellular and wifi network interfaces, as well as the current
-     *  CPU usage.
+     *  which is used to display status of the cellular and wifi networks
+     *  as well as the current CPU usage. The cumulative usage of each
+     *  network interface is appended by createInterfaceRows once the
+     *  service is connected.
      */
     private void createTable() {
-    	TableLayout table = (TableLayout)findViewById(R.id.disp);
+    	mTable = (TableLayout)findViewById(R.id.disp);
     	
-    	mInfoFields.addElement(createTableRow(table, R.string.disp_cell, -1, 0));
-    	mStatsFields.addElement(createTableRow(table, -1, R.string.disp_in, 0));
-    	mStatsFields.addElement(createTableRow(table, -1, R.string.disp_out, 0));
-    	createTableRow(table, 0, 0, 0);
-    	mInfoFields.addElement(createTableRow(table, R.string.disp_wifi, -1, 0));
-    	mStatsFields.addElement(createTableRow(table, -1, R.string.disp_in, 0));
-    	mStatsFields.addElement(createTableRow(table, -1, R.string.disp_out, 0));
-    	createTableRow(table, 0, 0, 0);
-    	mCpuFields.addElement(createTableRow(table, R.string.disp_cpu,
+    	mInfoFields.addElement(createTableRow(mTable, R.string.disp_cell, -1, 0));
+    	mInfoFields.addElement(createTableRow(mTable, R.string.disp_wifi, -1, 0));
+    	mCpuFields.addElement(createTableRow(mTable, R.string.disp_cpu,
     				R.string.disp_cpu_type, 0));
+    	mFixedRows = mTable.getChildCount();
+    }
+    
+    /**
+     * (Re)generate the table section with in and out byte counts for each
+     * network interface in the given snapshot of the service, called by the
+     * service whenever the set of interfaces changes. The resulting
+     * mStatsFields is indexed like the counters of the service and has null
+     * entries for unused interface ids.
+     */
+    private void createInterfaceRows(Snapshot snapshot) {
+    	mTable.removeViews(mFixedRows, mTable.getChildCount() - mFixedRows);
+    	mStatsFields.clear();
+    	for (int id = 0; id < snapshot.getInterfaceLimit(); ++id) {
+    		if (snapshot.mNames[id] == null) {
+    			mStatsFields.addElement(null);
+    			mStatsFields.addElement(null);
+    			continue;
+    		}
+    		createTableRow(mTable, 0, 0, 0);
+    		createLabelRow(mTable, snapshot.mNames[id]);
+    		mStatsFields.addElement(createTableRow(mTable, -1, R.string.disp_in, 0));
+    		mStatsFields.addElement(createTableRow(mTable, -1, R.string.disp_out, 0));
+    	}
     }
     
     /**
@@ -209,4 +245,15 @@ public class NetMeter extends Activity {
 		}
 		return null;
     }
+    
+    /**
+     * Helper function to generate a table row with a single text label.
+     */
+    private void createLabelRow(TableLayout table, String label) {
+    	TableRow tr = new TableRow(this);
+    	table.addView(tr);
+    	TextView txt = new TextView(this);
+    	tr.addView(txt);
+    	txt.setText(label);
+    }
 }
\ No newline at end of file
@@ -15,6 +15,10 @@
  */
 package com.google.android.netmeter;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Vector;
 
 
@@ -27,18 +31,35 @@ import android.net.ConnectivityManager;
 import android.net.wifi.WifiManager;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
 import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.widget.TextView;
+import android.widget.Toast;
 
 /**
  * Local service which operates in close cooperation with NetMeter activity.
  * 
- * Execute monitoring through periodic polling, update in-memory history
+ * Execute monitoring through periodic polling, update the history
  * buffers and update display if linkage has been established by the
- * activity after binding to the service.
+ * activity after binding to the service. The history buffers are kept in
+ * memory-mapped files in the private files directory of the application,
+ * so that they survive a restart of the service.
+ * 
+ * The polling interval adapts to the activity: while all counters are idle
+ * and the display is not visible, the interval backs off up to
+ * MAX_INTERVAL_TICKS times SAMPLING_INTERVAL, and it drops back to
+ * SAMPLING_INTERVAL as soon as traffic or CPU load rises. Each sample is
+ * recorded in the histories for every SAMPLING_INTERVAL it covered.
+ * 
+ * Polling runs on a dedicated collector thread, so that slow reads of
+ * /proc never hold up the UI. After each sample the collector publishes a
+ * Snapshot and asks the UI thread to display it. The UI thread only ever
+ * looks at the latest snapshot, so a busy UI never holds up sampling
+ * either.
  * 
  * Whenever running, maintain a persistent notification in the status bar, which
  * sends an intent to (re)start NetMeter activity.
@@ -46,6 +67,12 @@ import android.widget.TextView;
 public class NetMeterService extends Service {
 	final private String TAG="NetMeterService";
 	final private int SAMPLING_INTERVAL = 5;
+	final private int MAX_INTERVAL_TICKS = 12;
+	// activity thresholds below which a sample counts as idle
+	final private long IDLE_RATE = 8000;
+	final private float IDLE_CPU = 10.0f;
+	// longest gap recorded after sleep, the span of the history
+	final private int MAX_GAP_TICKS = 24 * 3600 / SAMPLING_INTERVAL;
 	
 	private NotificationManager mNM;
 	
@@ -62,41 +89,197 @@ public class NetMeterService extends Service {
     }
 	private final IBinder mBinder = new NetMeterBinder();
 	
+	/**
+	 * Display with one table section per interface, which is rebuilt
+	 * whenever interfaces come or go.
+	 */
+	interface InterfaceLayout {
+		/**
+		 * Rebuild the counter views for the interfaces of the snapshot,
+		 * called on the UI thread.
+		 */
+		void relayout(Snapshot snapshot);
+	}
+	
 	// various stats collection objects
 	private StatsProcessor mStatsProc;
 	private CpuMon mCpuMon;
 	private GraphView mGraph = null;
+	private InterfaceLayout mLayout = null;
+	private Vector<TextView> mStatsViews;
+	// Snapshot.mLayout the counter views are laid out for
+	private int mLayoutVersion;
 	private long mLastTime;
 	
-	// All the polling and display updating is driven from this
-	// hander which is periodically executed every SAMPLING_INTERVAL seconds.
-	private Handler mHandler = new Handler();
+	// latest state published by the collector, and the one last displayed
+	private volatile Snapshot mSnapshot;
+	private Snapshot mPainted = null;
+	
+	// All the polling is driven from this handler on the collector thread,
+	// which is periodically executed every SAMPLING_INTERVAL seconds.
+	private HandlerThread mCollectorThread;
+	private Handler mCollector;
+	final private AdaptiveScheduler mScheduler =
+		new AdaptiveScheduler(MAX_INTERVAL_TICKS);
 	private Runnable mRefresh = new Runnable() {
 		public void run() {
-			// Compensate for sleep time, since this hander is not getting called
-			// when the device is asleep/suspended
+			// Count the base intervals since the last sample from the clock,
+			// which also covers sleep time, since this handler is not getting
+			// called when the device is asleep/suspended
 			long last_time = SystemClock.elapsedRealtime();
-			if (last_time - mLastTime > 10 * SAMPLING_INTERVAL * 1000) {
-				int padding = (int) ((last_time - mLastTime) / (SAMPLING_INTERVAL * 1000));
-				mCpuMon.getHistory().pad(padding);
-				
-				Vector<StatCounter> counters = mStatsProc.getCounters();
-				for (int i = 0; i < counters.size(); i++) {
-					counters.get(i).getHistory().pad(padding);
+			long interval = SAMPLING_INTERVAL * 1000;
+			int ticks = (int) Math.min(MAX_GAP_TICKS,
+					Math.max(1, (last_time - mLastTime + interval / 2) / interval));
+			mLastTime = last_time;
+			mStatsProc.processUpdate(ticks);
+			mCpuMon.readStats(ticks);
+			publish();
+			boolean active = mStatsProc.getMaxRate() > IDLE_RATE
+					|| mCpuMon.getBusy() > IDLE_CPU;
+			int next = mScheduler.next(ticks, active);
+			mCollector.postDelayed(mRefresh, next * interval);
+		}
+	};
+	
+	/**
+	 * Switch between sampling every SAMPLING_INTERVAL while the display
+	 * is visible and adaptive sampling otherwise.
+	 */
+	private void setInteractive(final boolean interactive) {
+		mCollector.post(new Runnable() {
+			public void run() {
+				mScheduler.setInteractive(interactive);
+				if (interactive) {
+					// cut short a backed off interval
+					mCollector.removeCallbacks(mRefresh);
+					mCollector.postDelayed(mRefresh, SAMPLING_INTERVAL * 1000);
 				}
 			}
-			mLastTime = last_time;
-			mStatsProc.processUpdate();
-			mCpuMon.readStats();
-			if (mGraph != null) mGraph.refresh();
-			mHandler.postDelayed(mRefresh, SAMPLING_INTERVAL * 1000);
+		});
+	}
+	
+	// Display updates are done by this handler on the UI thread.
+	private Handler mHandler = new Handler();
+	private Runnable mPaint = new Runnable() {
+		public void run() {
+			Snapshot snapshot = mSnapshot;
+			if (snapshot == mPainted) return;
+			mPainted = snapshot;
+			if (mLayout != null && snapshot.mLayout != mLayoutVersion) {
+				// ids may now stand for other interfaces
+				mLayoutVersion = snapshot.mLayout;
+				mLayout.relayout(snapshot);
+				mStatsProc.linkCounters(mStatsViews);
+			}
+			mStatsProc.paint(snapshot);
+			mCpuMon.paint(snapshot);
+			if (mGraph != null) mGraph.refresh(snapshot);
 		}
 	};
+	
 	/**
 	 * Reset the counters - triggered by the reset menu of the controller activity
 	 */
 	public void resetCounters() {
-		mStatsProc.reset();
+		mCollector.post(new Runnable() {
+			public void run() {
+				mStatsProc.reset();
+				publish();
+			}
+		});
+	}
+	
+	/**
+	 * Export the histories of all counters and CPUs, with the breakdown of
+	 * every CPU, to a CSV and a binary file in the given directory.
+	 * 
+	 * The series are gathered on the collector thread and written by a
+	 * background thread of their own, so that sampling carries on. The
+	 * result is reported as toast.
+	 */
+	public void exportHistory(final File dir) {
+		mCollector.post(new Runnable() {
+			public void run() {
+				Snapshot snapshot = mSnapshot;
+				Vector<String> names = new Vector<String>();
+				Vector<HistoryBuffer> histories = new Vector<HistoryBuffer>();
+				for (int id = 0; id < snapshot.getInterfaceLimit(); ++id) {
+					if (snapshot.mNames[id] == null) continue;
+					names.add(snapshot.mNames[id] + "-rx");
+					histories.add(snapshot.mHistories[id * 2]);
+					names.add(snapshot.mNames[id] + "-tx");
+					histories.add(snapshot.mHistories[id * 2 + 1]);
+				}
+				for (int core = -1; core < mCpuMon.getCoreCount(); ++core) {
+					String cpu = core < 0 ? "cpu" : "cpu" + core;
+					names.add(cpu);
+					histories.add(core < 0 ? mCpuMon.getHistory()
+							: mCpuMon.getCoreHistory(core));
+					for (int field = 0; field < CpuMon.FIELDS; ++field) {
+						HistoryBuffer history = mCpuMon.getFieldHistory(core, field);
+						if (history == null) continue;
+						names.add(cpu + "-" + CpuMon.getFieldName(field));
+						histories.add(history);
+					}
+				}
+				startExport(dir, names.toArray(new String[names.size()]),
+						histories.toArray(new HistoryBuffer[histories.size()]));
+			}
+		});
+	}
+	
+	private void startExport(final File dir, final String[] names,
+			final HistoryBuffer[] histories) {
+		new Thread(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				String base = "netmeter-"
+					+ new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+				File csv = new File(dir, base + ".csv");
+				File bin = new File(dir, base + ".bin");
+				String result;
+				try {
+					dir.mkdirs();
+					HistoryExporter exporter = new HistoryExporter(SAMPLING_INTERVAL);
+					exporter.writeCsv(csv, names, histories);
+					exporter.writeBinary(bin, names, histories);
+					result = getString(R.string.export_done) + " " + csv.getParent();
+				} catch (IOException e) {
+					Log.e(TAG, "Export to " + dir + " failed", e);
+					// no partial exports
+					csv.delete();
+					bin.delete();
+					result = getString(R.string.export_failed) + " " + dir;
+				}
+				final String text = result;
+				mHandler.post(new Runnable() {
+					public void run() {
+						Toast.makeText(NetMeterService.this, text,
+								Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		}, "NetMeterExport").start();
+	}
+	
+	/**
+	 * Latest state of the collectors.
+	 */
+	public Snapshot getSnapshot() {
+		return mSnapshot;
+	}
+	
+	/**
+	 * Publish the state after a sample and schedule it for display.
+	 * Called on the collector thread.
+	 */
+	private void publish() {
+		Snapshot snapshot = mStatsProc.createSnapshot(SystemClock.elapsedRealtime());
+		mCpuMon.fillSnapshot(snapshot);
+		mSnapshot = snapshot;
+		// a display update still pending is superseded by this one
+		mHandler.removeCallbacks(mPaint);
+		mHandler.post(mPaint);
 	}
 	
 	/**
@@ -107,20 +290,32 @@ public class NetMeterService extends Service {
 	 * 
 	 * In retrospect, this is probably a rather hacky architecture.
 	 * 
-	 * @param stats_views text view to display network counters
+	 * @param stats_views text view to display network counters, indexed
+	 * 	by counter index (2 * interface id for in, 2 * id + 1 for out),
+	 * 	filled in by layout
 	 * @param info_views text views to display network status info
 	 * @param cpu_views text views to display CPU usage information
 	 * @param graph reference to graph widget
+	 * @param layout builds the stats_views for the current interfaces,
+	 * 	before the first display and whenever they change
 	 */
 	public void setDisplay(Vector<TextView> stats_views,
 			Vector<TextView> info_views,
 			Vector<TextView> cpu_views,
-			GraphView graph) {
+			GraphView graph,
+			InterfaceLayout layout) {
 		mGraph = graph;
-		mStatsProc.linkDisplay(stats_views, info_views, graph);
+		mLayout = layout;
+		mStatsViews = stats_views;
+		Snapshot snapshot = mSnapshot;
+		layout.relayout(snapshot);
+		mLayoutVersion = snapshot.mLayout;
+		mStatsProc.linkDisplay(stats_views, info_views);
 		mCpuMon.linkDisplay(cpu_views);
-		graph.linkCounters(mStatsProc.getCounters(),
-						mCpuMon.getHistory());
+		graph.linkCounters(mSnapshot);
+		mPainted = null;
+		mPaint.run();
+		setInteractive(true);
 	}
 	 
 	/**
@@ -133,16 +328,25 @@ public class NetMeterService extends Service {
 		TelephonyManager cellular = (TelephonyManager)getSystemService(TELEPHONY_SERVICE);
 		ConnectivityManager cx = (ConnectivityManager)getSystemService(CONNECTIVITY_SERVICE);
 		
-		mStatsProc = new StatsProcessor(SAMPLING_INTERVAL, cellular, wifi, cx);
-		mCpuMon = new CpuMon();
+		mStatsProc = new StatsProcessor(getFilesDir(), SAMPLING_INTERVAL,
+				cellular, wifi, cx);
+		mCpuMon = new CpuMon(getFilesDir(), SAMPLING_INTERVAL);
 		
+		// The first sample is taken here, before the collector thread
+		// exists, so that a snapshot is available as soon as the
+		// activity binds.
 		mStatsProc.processUpdate();
 		mStatsProc.reset();
+		mSnapshot = mStatsProc.createSnapshot(SystemClock.elapsedRealtime());
+		mCpuMon.fillSnapshot(mSnapshot);
 		mNM = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
 		
 		postNotification();
 		mLastTime = SystemClock.elapsedRealtime();
-		mHandler.postDelayed(mRefresh, SAMPLING_INTERVAL * 1000);
+		mCollectorThread = new HandlerThread("NetMeterCollector");
+		mCollectorThread.start();
+		mCollector = new Handler(mCollectorThread.getLooper());
+		mCollector.postDelayed(mRefresh, SAMPLING_INTERVAL * 1000);
 		setForeground(true);
 	}
 	
@@ -153,7 +357,19 @@ public class NetMeterService extends Service {
     public void onDestroy() {
 		Log.i(TAG, "onDestroy");
 		mNM.cancel(R.string.iconized);
-		mHandler.removeCallbacks(mRefresh);
+		mCollector.removeCallbacks(mRefresh);
+		mHandler.removeCallbacks(mPaint);
+		// release the collectors on their own thread, after any sample
+		// in progress, and let the thread finish
+		mCollector.post(new Runnable() {
+			public void run() {
+				mStatsProc.close();
+				mCpuMon.close();
+				Log.i(TAG, "wakeups: " + mScheduler.getWakeups()
+						+ ", fixed interval: " + mScheduler.getFixedWakeups());
+				mCollectorThread.getLooper().quit();
+			}
+		});
 	}
 
 	/**
@@ -174,6 +390,9 @@ public class NetMeterService extends Service {
 		mStatsProc.unlinkDisplay();
 		mCpuMon.unlinkDisplay();
 		mGraph = null;
+		mLayout = null;
+		mStatsViews = null;
+		setInteractive(false);
 		return true;
 	}
 	
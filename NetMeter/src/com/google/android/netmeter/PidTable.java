@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.util.Arrays;
+
+/**
+ * Snapshot of per-task state keyed by pid (or tid).
+ *
+ * An open-addressing hash table with linear probing on primitive arrays,
+ * holding the runtime (utime + stime) and start time of each task together
+ * with its display name. The table is meant to be reused: clear() keeps the
+ * arrays, so that refreshing a snapshot does not allocate unless the number
+ * of tasks outgrows the capacity.
+ */
+class PidTable {
+	final private int EMPTY = -1;
+
+	private int[] mPids;
+	private long[] mRuntimes;
+	private long[] mStartTimes;
+	private String[] mNames;
+	private int mMask;
+	private int mSize = 0;
+
+	PidTable() {
+		allocate(256);
+	}
+
+	/**
+	 * Remove all entries, keeping the allocated capacity.
+	 */
+	public void clear() {
+		if (mSize == 0) return;
+		Arrays.fill(mPids, EMPTY);
+		Arrays.fill(mNames, null);
+		mSize = 0;
+	}
+
+	/**
+	 * Add the state of a task, which must not already be in the table.
+	 */
+	public void put(int pid, long runtime, long start_time, String name) {
+		if ((mSize + 1) * 2 > mPids.length) {
+			grow();
+		}
+		int slot = home(pid);
+		while (mPids[slot] != EMPTY) {
+			slot = (slot + 1) & mMask;
+		}
+		mPids[slot] = pid;
+		mRuntimes[slot] = runtime;
+		mStartTimes[slot] = start_time;
+		mNames[slot] = name;
+		++mSize;
+	}
+
+	/**
+	 * Add all entries of another table.
+	 */
+	public void putAll(PidTable other) {
+		for (int slot = 0; slot < other.capacity(); ++slot) {
+			if (other.isUsed(slot)) {
+				put(other.mPids[slot], other.mRuntimes[slot],
+						other.mStartTimes[slot], other.mNames[slot]);
+			}
+		}
+	}
+
+	/**
+	 * @return slot holding the given pid or -1 if not present
+	 */
+	public int find(int pid) {
+		for (int slot = home(pid); mPids[slot] != EMPTY; slot = (slot + 1) & mMask) {
+			if (mPids[slot] == pid) return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return slot of the given pid if it refers to the same task, i.e.
+	 * 	has the same start time, otherwise -1
+	 */
+	public int find(int pid, long start_time) {
+		int slot = find(pid);
+		if (slot >= 0 && mStartTimes[slot] != start_time) return -1;
+		return slot;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return number of slots, for iterating with isUsed()
+	 */
+	public int capacity() {
+		return mPids.length;
+	}
+
+	public boolean isUsed(int slot) {
+		return mPids[slot] != EMPTY;
+	}
+
+	public int getPid(int slot) {
+		return mPids[slot];
+	}
+
+	public long getRuntime(int slot) {
+		return mRuntimes[slot];
+	}
+
+	public long getStartTime(int slot) {
+		return mStartTimes[slot];
+	}
+
+	public String getName(int slot) {
+		return mNames[slot];
+	}
+
+	private int home(int pid) {
+		int h = pid * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & mMask;
+	}
+
+	private void allocate(int capacity) {
+		mPids = new int[capacity];
+		Arrays.fill(mPids, EMPTY);
+		mRuntimes = new long[capacity];
+		mStartTimes = new long[capacity];
+		mNames = new String[capacity];
+		mMask = capacity - 1;
+		mSize = 0;
+	}
+
+	private void grow() {
+		int[] pids = mPids;
+		long[] runtimes = mRuntimes;
+		long[] start_times = mStartTimes;
+		String[] names = mNames;
+		allocate(pids.length * 2);
+		for (int slot = 0; slot < pids.length; ++slot) {
+			if (pids[slot] != EMPTY) {
+				put(pids[slot], runtimes[slot], start_times[slot], names[slot]);
+			}
+		}
+	}
+}
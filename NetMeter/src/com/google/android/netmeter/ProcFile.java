@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reader for the small text files in /proc used by the collectors.
+ *
+ * A ProcFile created for a fixed path, like /proc/stat or /proc/net/dev,
+ * keeps its file handle open and re-reads the contents on every sample
+ * with positional reads from offset 0, which the kernel regenerates on
+ * each read. This saves the open and close per sample and keeps the number
+ * of descriptors flat. A ProcFile created without a path is used for
+ * per-process files through read(String), which opens the file, reads it
+ * and always closes it again.
+ *
+ * The data is read through direct buffers taken from a small shared pool
+ * and copied into a byte array owned by the ProcFile, which grows to the
+ * size of the largest file read and is then reused.
+ *
+ * The collectors take the root of the proc file system as a parameter,
+ * PROC_ROOT unless they are run against a recorded tree.
+ */
+class ProcFile {
+	final static public String PROC_ROOT = "/proc";
+
+	final static private int BUFFER_SIZE = 8192;
+	final static private int MAX_POOLED = 8;
+	final static private ByteBuffer[] sPool = new ByteBuffer[MAX_POOLED];
+	static private int sPooled = 0;
+
+	final private String mPath;
+	private FileChannel mChannel = null;
+
+	private byte[] mData = new byte[1024];
+	private int mLength = 0;
+
+	/**
+	 * Create a reader for per-process files, see read(String).
+	 */
+	ProcFile() {
+		mPath = null;
+	}
+
+	/**
+	 * Create a reader for a fixed file, which is opened on the first read
+	 * and kept open until close().
+	 */
+	ProcFile(String path) {
+		mPath = path;
+	}
+
+	/**
+	 * Re-read the contents of the fixed file.
+	 */
+	public void read() throws IOException {
+		if (mChannel == null) {
+			mChannel = new RandomAccessFile(mPath, "r").getChannel();
+		}
+		try {
+			readContents(mChannel);
+		} catch (IOException e) {
+			// reopen on the next attempt
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the contents of a file which is not kept open.
+	 *
+	 * @return false if the file could not be read, e.g. because the process
+	 * 	it belongs to has exited
+	 */
+	public boolean read(String path) {
+		mLength = 0;
+		try {
+			FileChannel channel = new RandomAccessFile(path, "r").getChannel();
+			try {
+				readContents(channel);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Close the handle of a fixed file. It is reopened by the next read().
+	 */
+	public void close() {
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (IOException e) {
+				// nothing left to release
+			}
+			mChannel = null;
+		}
+	}
+
+	/**
+	 * @return contents of the last read, valid up to getLength()
+	 */
+	public byte[] getData() {
+		return mData;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	private void readContents(FileChannel channel) throws IOException {
+		mLength = 0;
+		ByteBuffer buffer = acquireBuffer();
+		try {
+			int count;
+			while ((count = channel.read(buffer, mLength)) > 0) {
+				if (mLength + count > mData.length) {
+					byte[] data = new byte[Math.max(mData.length * 2, mLength + count)];
+					System.arraycopy(mData, 0, data, 0, mLength);
+					mData = data;
+				}
+				buffer.flip();
+				buffer.get(mData, mLength, count);
+				buffer.clear();
+				mLength += count;
+			}
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	private static synchronized ByteBuffer acquireBuffer() {
+		if (sPooled > 0) {
+			ByteBuffer buffer = sPool[--sPooled];
+			sPool[sPooled] = null;
+			return buffer;
+		}
+		return ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	private static synchronized void releaseBuffer(ByteBuffer buffer) {
+		buffer.clear();
+		if (sPooled < MAX_POOLED) {
+			sPool[sPooled++] = buffer;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+/**
+ * Scanner for the single line /proc/[pid]/stat and /proc/[pid]/task/[tid]/stat
+ * files.
+ *
+ * The line is read through a ProcFile into a buffer which is reused across
+ * processes and the interesting fields are parsed in place into primitives.
+ * The command name is enclosed in parentheses and may itself contain spaces
+ * and ')', so the fields following it are located from the last ')' of the
+ * line.
+ */
+class ProcStatScanner {
+	// 1-based field numbers as documented in proc(5)
+	final private int STATE_FIELD = 3;
+	final private int UTIME_FIELD = 14;
+	final private int STIME_FIELD = 15;
+	final private int STARTTIME_FIELD = 22;
+
+	final private ProcFile mReader = new ProcFile();
+	private byte[] mBuffer;
+	private int mLength = 0;
+
+	private int mCommStart;
+	private int mCommEnd;
+	private long mUtime;
+	private long mStime;
+	private long mStartTime;
+
+	/**
+	 * Read and parse the given stat file.
+	 *
+	 * @return false if the file could not be read or parsed, for example
+	 * 	because the process has exited in the meantime
+	 */
+	public boolean read(String filename) {
+		if (!mReader.read(filename)) return false;
+		mBuffer = mReader.getData();
+		mLength = mReader.getLength();
+		return parse();
+	}
+
+	/**
+	 * Parse the contents of the buffer, which hold mLength bytes.
+	 */
+	private boolean parse() {
+		int open = -1;
+		for (int i = 0; i < mLength; ++i) {
+			if (mBuffer[i] == '(') {
+				open = i;
+				break;
+			}
+		}
+		int close = -1;
+		for (int i = mLength - 1; i > open; --i) {
+			if (mBuffer[i] == ')') {
+				close = i;
+				break;
+			}
+		}
+		if (open < 0 || close < 0) return false;
+		mCommStart = open + 1;
+		mCommEnd = close;
+
+		int field = STATE_FIELD - 1;
+		int i = close + 1;
+		while (i < mLength && field < STARTTIME_FIELD) {
+			while (i < mLength && mBuffer[i] == ' ') ++i;
+			if (i >= mLength || mBuffer[i] == '\n') break;
+			++field;
+			long value = 0;
+			while (i < mLength && mBuffer[i] >= '0' && mBuffer[i] <= '9') {
+				value = value * 10 + (mBuffer[i] - '0');
+				++i;
+			}
+			switch (field) {
+			case UTIME_FIELD:
+				mUtime = value;
+				break;
+			case STIME_FIELD:
+				mStime = value;
+				break;
+			case STARTTIME_FIELD:
+				mStartTime = value;
+				break;
+			}
+			while (i < mLength && mBuffer[i] != ' ' && mBuffer[i] != '\n') ++i;
+		}
+		return field == STARTTIME_FIELD;
+	}
+
+	/**
+	 * @return user plus system time of the task in clock ticks
+	 */
+	public long getRuntime() {
+		return mUtime + mStime;
+	}
+
+	public long getUtime() {
+		return mUtime;
+	}
+
+	public long getStime() {
+		return mStime;
+	}
+
+	/**
+	 * @return start time of the task in clock ticks after boot
+	 */
+	public long getStartTime() {
+		return mStartTime;
+	}
+
+	/**
+	 * Compare the command name (without parentheses) against ASCII bytes.
+	 */
+	public boolean commEquals(byte[] name) {
+		if (mCommEnd - mCommStart != name.length) return false;
+		for (int i = 0; i < name.length; ++i) {
+			if (mBuffer[mCommStart + i] != name[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return command name including the enclosing parentheses, the way it
+	 * 	is displayed in the task list
+	 */
+	public String getComm() {
+		return new String(mBuffer, mCommStart - 1, mCommEnd - mCommStart + 2);
+	}
+
+	/**
+	 * Parse a /proc directory entry name as pid.
+	 *
+	 * @return pid or -1 if the name is not purely numeric
+	 */
+	public static int parsePid(String name) {
+		int len = name.length();
+		if (len == 0 || len > 9) return -1;
+		int pid = 0;
+		for (int i = 0; i < len; ++i) {
+			char c = name.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			pid = pid * 10 + (c - '0');
+		}
+		return pid;
+	}
+}
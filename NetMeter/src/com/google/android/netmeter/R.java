@@ -17,6 +17,7 @@ public final class R {
     public static final class id {
         public static final int disp=0x7f060000;
         public static final int graph=0x7f060001;
+        public static final int export=0x7f060008;
         public static final int help=0x7f060007;
         public static final int list_item=0x7f060002;
         public static final int reset=0x7f060003;
@@ -46,9 +47,12 @@ public final class R {
         public static final int disp_type=0x7f04000f;
         public static final int disp_user=0x7f040012;
         public static final int disp_wifi=0x7f040009;
+        public static final int export_done=0x7f040017;
+        public static final int export_failed=0x7f040018;
         public static final int help_text=0x7f040015;
         public static final int help_title=0x7f040002;
         public static final int iconized=0x7f040003;
+        public static final int menu_export=0x7f040016;
         public static final int menu_help=0x7f040008;
         public static final int menu_reset=0x7f040004;
         public static final int menu_stop=0x7f040007;
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+/**
+ * State of the collectors after one sample, as seen by the display.
+ *
+ * A snapshot is filled in by the collector thread and then published
+ * through a volatile reference, after which it is never modified again.
+ * The display thread therefore reads it without locking. Counter arrays are
+ * indexed like the counters of StatsProcessor (2 * id for receive,
+ * 2 * id + 1 for transmit), interface arrays by interface id.
+ *
+ * The history buffers referenced here keep being written by the collector
+ * thread; readers check HistoryBuffer.getSequence() to detect a concurrent
+ * update.
+ */
+class Snapshot {
+	// elapsed realtime of the sample in ms
+	final long mTime;
+
+	// per interface id, name is null for unused ids
+	final String[] mNames;
+	// InterfaceTable version the names belong to
+	int mLayout = 0;
+	final long[] mTraffic;
+
+	// per counter index
+	final long[] mTotals;
+	final long[] mRates;
+	final HistoryBuffer[] mHistories;
+
+	String mCellLabel = "";
+	String mWifiLabel = "";
+
+	boolean mCpuValid = false;
+	float mCpuUser = 0;
+	float mCpuSystem = 0;
+	HistoryBuffer mCpuHistory = null;
+
+	Snapshot(long time, int interfaces) {
+		mTime = time;
+		mNames = new String[interfaces];
+		mTraffic = new long[interfaces];
+		mTotals = new long[interfaces * 2];
+		mRates = new long[interfaces * 2];
+		mHistories = new HistoryBuffer[interfaces * 2];
+	}
+
+	/**
+	 * @return number of interface ids covered, including unused ones
+	 */
+	public int getInterfaceLimit() {
+		return mNames.length;
+	}
+}
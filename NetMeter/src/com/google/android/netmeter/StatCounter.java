@@ -15,62 +15,152 @@
  */
 package com.google.android.netmeter;
 
-import java.text.DecimalFormat;
-import android.widget.TextView;
-
+/**
+ * Cumulative byte counter of an interface together with the history of
+ * its rate in bits per second.
+ * 
+ * Updates take the raw kernel counter value and the elapsed time since the
+ * previous update. All arithmetic is done in 64 bit, so that neither large
+ * totals nor multi-gigabit rates overflow, and wrap-around of both 32 and
+ * 64 bit kernel counters is accounted for.
+ */
 public class StatCounter {
-	final private long KILO = 1000;
-	final private long MEGA = KILO * 1000;
-	final private long GIGA = MEGA * 1000;
-	
-	final private DecimalFormat mFmt = new DecimalFormat("###,###.0");
-	final private String mUnit;
+	final static private long KILO = 1000;
+	final static private long MEGA = KILO * 1000;
+	final static private long GIGA = MEGA * 1000;
+	final private long NANOS_PER_MICRO = 1000;
+	final private long MICROS_PER_SECOND = 1000000;
+	final private long COUNTER32_RANGE = 1L << 32;
 	
-	private String mLastUpdate;
-	private long mBase;
+	private boolean mHasValue;
+	// last raw counter value as read from the kernel
 	private long mValue;
+	// running total since the first update, corrected for wrap-around
+	private long mTotal;
+	private long mBase;
+	private long mRate;
 	private HistoryBuffer mRateHistory;
 	
 	
-	StatCounter(String unit) {
-		mUnit = unit;
+	StatCounter() {
+		this(new HistoryBuffer());
+	}
+	
+	StatCounter(HistoryBuffer history) {
 		mBase = 0;
 		mValue = 0;
-		mRateHistory = new HistoryBuffer();
-		mLastUpdate = null;
+		mTotal = 0;
+		mRate = 0;
+		mRateHistory = history;
+		mHasValue = false;
 	}
 	final public void reset() {
-		mBase = mValue;
+		mBase = mTotal;
+	}
+	
+	final public boolean update(long val, long elapsed_nanos) {
+		return update(val, elapsed_nanos, 1);
 	}
 	
-	final public boolean update(String val_str, int time_delta) {
-		if (val_str == mLastUpdate) {
-			mRateHistory.add(0);
+	/**
+	 * Update the counter with a new raw value.
+	 * 
+	 * The rate is averaged over the elapsed time, however long, and
+	 * recorded for each base sampling interval it covers.
+	 * 
+	 * @param val raw counter value, interpreted as unsigned 64 bit
+	 * @param elapsed_nanos time since the previous update
+	 * @param ticks number of base sampling intervals since the previous update
+	 * @return true if the counter value has changed
+	 */
+	final public boolean update(long val, long elapsed_nanos, int ticks) {
+		if (!mHasValue) {
+			mValue = val;
+			mTotal = val;
+			mHasValue = true;
+			return true;
+		}
+		if (val == mValue) {
+			mRate = 0;
+			mRateHistory.add(0, ticks);
 			return false;
 		}
 		
-		int val = Integer.parseInt(val_str);
-		if (val < mBase || mLastUpdate == null) {
-			mBase = 0; // wrap-around or reset
-		} else {
-			mRateHistory.add((int)((val - mBase) - (mValue - mBase)) / time_delta * 8);
+		long delta = getDelta(mValue, val);
+		mValue = val;
+		mTotal += delta;
+		long elapsed_micros = elapsed_nanos / NANOS_PER_MICRO;
+		if (elapsed_micros > 0) {
+			mRate = delta * 8 * MICROS_PER_SECOND / elapsed_micros;
 		}
-		mValue = val;	
-		mLastUpdate = val_str;
+		// without a usable interval the previous rate is kept, but the
+		// ticks are still recorded to keep the history aligned
+		mRateHistory.add(mRate > Integer.MAX_VALUE ?
+				Integer.MAX_VALUE : (int)mRate, ticks);
 		return true;
 	}
 	
-	final public void paint(TextView view) {
-		Long disp_val = mValue - mBase;
+	/**
+	 * Difference between two successive raw counter values.
+	 * 
+	 * A decreasing value is either a wrap-around or a reset of the interface
+	 * counters. A 32 bit counter is assumed to have wrapped if the previous value
+	 * was in the upper half of its range, a 64 bit counter if it was in the upper
+	 * half of the unsigned 64 bit range. Anything else is treated as a reset,
+	 * which contributes no traffic.
+	 */
+	private long getDelta(long prev, long val) {
+		if ((val ^ Long.MIN_VALUE) >= (prev ^ Long.MIN_VALUE)) {
+			return val - prev;
+		}
+		if (prev >= COUNTER32_RANGE / 2 && prev < COUNTER32_RANGE
+				&& val >= 0 && val < COUNTER32_RANGE) {
+			return val + COUNTER32_RANGE - prev;
+		}
+		if (prev < 0) {
+			return val - prev; // unsigned 64 bit wrap
+		}
+		return 0;
+	}
+	
+	/**
+	 * @return rate in bits per second measured by the last update
+	 */
+	final public long getRate() {
+		return mRate;
+	}
+	
+	/**
+	 * @return bytes counted since the last reset
+	 */
+	final public long getTotal() {
+		return mTotal - mBase;
+	}
+	
+	/**
+	 * Display a counter total, scaled to k, M or G with one decimal. Only
+	 * called on the UI thread, which owns the views.
+	 */
+	static public void paint(DisplayText text, long disp_val, String unit) {
+		text.clear();
 		if ( disp_val > GIGA) {
-			view.setText(mFmt.format((double)disp_val / GIGA) + " G" + mUnit);
+			text.appendTenths(getTenths(disp_val, GIGA), true).append(" G");
 		} else if ( disp_val > MEGA) {
-			view.setText(mFmt.format((double)disp_val / MEGA) + " M" + mUnit);
+			text.appendTenths(getTenths(disp_val, MEGA), true).append(" M");
 		} else if ( disp_val > KILO) {
-			view.setText(mFmt.format((double)disp_val / KILO) + " k" + mUnit);
+			text.appendTenths(getTenths(disp_val, KILO), true).append(" k");
 		} else {
-			view.setText(Long.toString(disp_val) + " " + mUnit);
+			text.append(disp_val, false).append(' ');
 		}
+		text.append(unit).show();
+	}
+	
+	/**
+	 * @return value / scale in tenths, rounded
+	 */
+	static private long getTenths(long value, long scale) {
+		long tenth = scale / 10;
+		return (value + tenth / 2) / tenth;
 	}
 	
 	final public HistoryBuffer getHistory() {
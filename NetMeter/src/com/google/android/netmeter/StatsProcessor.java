@@ -15,9 +15,7 @@
  */
 package com.google.android.netmeter;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
 import java.util.Vector;
 
@@ -26,139 +24,353 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.widget.TextView;
 
+/**
+ * Collects the transmit and receive byte counters of all network interfaces
+ * listed in /proc/net/dev.
+ * 
+ * Interfaces are discovered automatically on every sample and dropped again
+ * when they disappear. Each interface owns a pair of counters at index
+ * 2 * id (receive) and 2 * id + 1 (transmit), where id is the stable id
+ * assigned by the InterfaceTable.
+ * 
+ * If a history directory is given, the rate history of each interface is
+ * kept in a memory-mapped file named after the interface, so that it
+ * survives a restart of the service as well as the interface going away
+ * for a while, as it does when the radio or wifi is switched off. Files
+ * are only deleted once they have not been updated for the horizon of
+ * the history, when nothing would be left of them anyway.
+ * 
+ * Sampling runs on the collector thread of the service, which publishes
+ * the results as Snapshot. The linked views are only touched by paint(),
+ * which is called on the UI thread with the latest snapshot.
+ */
 public class StatsProcessor {
-	final private int NUM_COUNTERS = 4;
-	final private String DEV_FILE = "/proc/self/net/dev";
-	final private String WIFI_DEV = "tiwlan0";
-	final private String CELL_DEV = "rmnet0";
+	// relative to the proc root
+	final private String DEV_FILE = "/self/net/dev";
+	final private String HISTORY_PREFIX = "history-";
+	final private String[] HISTORY_SUFFIXES = { "-rx.dat", "-tx.dat" };
+	final private String UNIT = "B";
 	
-	private int mSamplingInterval;
+	final private File mHistoryDir;
+	final private int mSamplingInterval;
 	private WifiManager mWifi;
 	private TelephonyManager mCellular;
 	private ConnectivityManager mCx;
 	
-	private Vector<StatCounter> mCounters;
+	private StatCounter[] mCounters = new StatCounter[0];
 	private Vector<TextView> mCounterViews;
 	private Vector<TextView> mInfoViews;
+	// text of the counter views, null where there is no view
+	private DisplayText[] mCounterTexts;
+	private DisplayText mCellText;
+	private DisplayText mWifiText;
+	private String mCellLabel = "";
+	private String mWifiLabel = "";
+	
+	final private String mDevPath;
+	final private ProcFile mDevFile;
+	final private NetDevScanner mScanner = new NetDevScanner();
+	final private InterfaceTable mInterfaces = new InterfaceTable();
+	private int mGeneration = 0;
+	private long mLastSampleTime = 0;
 	
-	StatsProcessor(int sampling_interval,
+	/**
+	 * @param history_dir directory for persistent history or null to keep
+	 * 	the history in memory only
+	 * @param sampling_interval nominal sampling interval in seconds
+	 */
+	StatsProcessor(File history_dir,
+				int sampling_interval,
 				TelephonyManager cellular,
 				WifiManager wifi,
 				ConnectivityManager cx) {
+		this(history_dir, sampling_interval, cellular, wifi, cx,
+				ProcFile.PROC_ROOT);
+	}
+	
+	/**
+	 * @param proc_root root of the proc file system to read
+	 */
+	StatsProcessor(File history_dir,
+				int sampling_interval,
+				TelephonyManager cellular,
+				WifiManager wifi,
+				ConnectivityManager cx,
+				String proc_root) {
+		mDevPath = proc_root + DEV_FILE;
+		mDevFile = new ProcFile(mDevPath);
+		mHistoryDir = history_dir;
 		mSamplingInterval = sampling_interval;
 		mCellular = cellular;
 		mWifi = wifi;
 		mCx = cx;
-		mCounters = new Vector<StatCounter>();
-		for (int i = 0; i < NUM_COUNTERS; ++i) {
-			mCounters.addElement(new StatCounter("B"));
-		}
+		expireHistories();
 	}
 
 	public void reset() {
-		for (int i=0; i < NUM_COUNTERS; ++i ) {
-			mCounters.get(i).reset();
-			if (mCounterViews != null) {
-				mCounters.get(i).paint(mCounterViews.get(i));
+		for (int i=0; i < mCounters.length; ++i ) {
+			if (mCounters[i] != null) {
+				mCounters[i].reset();
 			}
 		}
 	}
 	
-	public Vector<StatCounter> getCounters() {
-		return mCounters;
+	public InterfaceTable getInterfaces() {
+		return mInterfaces;
+	}
+	
+	public StatCounter getRxCounter(int id) {
+		return mCounters[id * 2];
+	}
+	
+	public StatCounter getTxCounter(int id) {
+		return mCounters[id * 2 + 1];
+	}
+	
+	/**
+	 * @return highest rate of any counter in the last sample, in bits
+	 * 	per second
+	 */
+	public long getMaxRate() {
+		long max = 0;
+		for (int i=0; i < mCounters.length; ++i ) {
+			if (mCounters[i] != null && mCounters[i].getRate() > max) {
+				max = mCounters[i].getRate();
+			}
+		}
+		return max;
 	}
 	
+	/**
+	 * Link the display, where counter_views holds the views for the counters
+	 * in index order and may contain null entries for ids not displayed.
+	 * Called on the UI thread.
+	 */
 	public void linkDisplay(Vector<TextView> counter_views,
-							Vector<TextView> info_views,
-							GraphView graph) {
-		mCounterViews = counter_views;
+							Vector<TextView> info_views) {
+		linkCounters(counter_views);
 		mInfoViews = info_views;
-		for (int i=0; i < NUM_COUNTERS; ++i ) {
-			mCounters.get(i).paint(mCounterViews.get(i));
+		mCellText = new DisplayText(info_views.get(0));
+		mWifiText = new DisplayText(info_views.get(1));
+	}
+	
+	/**
+	 * Link the counter views again after the interface rows have been
+	 * rebuilt for a new set of interfaces. Called on the UI thread.
+	 */
+	public void linkCounters(Vector<TextView> counter_views) {
+		mCounterViews = counter_views;
+		mCounterTexts = new DisplayText[counter_views.size()];
+		for (int i = 0; i < mCounterTexts.length; ++i) {
+			if (counter_views.get(i) != null) {
+				mCounterTexts[i] = new DisplayText(counter_views.get(i));
+			}
+		}
+	}
+	
+	/**
+	 * Release the file handle kept open for sampling and write the
+	 * histories back.
+	 */
+	public void close() {
+		mDevFile.close();
+		for (int i = 0; i < mCounters.length; ++i) {
+			if (mCounters[i] != null) {
+				mCounters[i].getHistory().close();
+			}
 		}
-		processNetStatus();
 	}
 	
 	public void unlinkDisplay() {
 		mCounterViews = null;
 		mInfoViews = null;
+		mCounterTexts = null;
+		mCellText = null;
+		mWifiText = null;
+	}
+	
+	/**
+	 * Capture the state after the last sample for the display.
+	 */
+	public Snapshot createSnapshot(long time) {
+		Snapshot snapshot = new Snapshot(time, mInterfaces.getLimit());
+		snapshot.mLayout = mInterfaces.getVersion();
+		for (int id = 0; id < mInterfaces.getLimit(); ++id) {
+			if (!mInterfaces.isActive(id)) continue;
+			snapshot.mNames[id] = mInterfaces.getName(id);
+			snapshot.mTraffic[id] = mInterfaces.getRxBytes(id)
+					+ mInterfaces.getTxBytes(id);
+			for (int i = id * 2; i <= id * 2 + 1; ++i) {
+				snapshot.mTotals[i] = mCounters[i].getTotal();
+				snapshot.mRates[i] = mCounters[i].getRate();
+				snapshot.mHistories[i] = mCounters[i].getHistory();
+			}
+		}
+		snapshot.mCellLabel = mCellLabel;
+		snapshot.mWifiLabel = mWifiLabel;
+		return snapshot;
+	}
+	
+	/**
+	 * Display the given snapshot in the linked views, called on the UI
+	 * thread. The counter views must be laid out for the interfaces of the
+	 * snapshot, see Snapshot.mLayout.
+	 */
+	public void paint(Snapshot snapshot) {
+		if (mCounterViews != null) {
+			int count = Math.min(mCounterTexts.length, snapshot.mTotals.length);
+			for (int i = 0; i < count; ++i) {
+				DisplayText text = mCounterTexts[i];
+				if (text != null && snapshot.mNames[i / 2] != null) {
+					StatCounter.paint(text, snapshot.mTotals[i], UNIT);
+				}
+			}
+		}
+		if (mInfoViews != null) {
+			if (mCellText.clear().append(snapshot.mCellLabel).show()) {
+				mInfoViews.get(0).setTextColor(Color.GREEN);
+			}
+			if (mWifiText.clear().append(snapshot.mWifiLabel).show()) {
+				mInfoViews.get(1).setTextColor(Color.GREEN);
+			}
+		}
 	}
 	
 	public boolean processUpdate() {
+		return processUpdate(1);
+	}
+	
+	/**
+	 * @param ticks number of base sampling intervals since the last update
+	 */
+	public boolean processUpdate(int ticks) {
 		processNetStatus();
-		return processIfStats();
+		return processIfStats(SystemClock.elapsedRealtime() * 1000000, ticks);
+	}
+	
+	public boolean processIfStats(long now_nanos) {
+		return processIfStats(now_nanos, 1);
 	}
 	
-	public boolean processIfStats() {
-		FileReader fstream;
+	/**
+	 * Sample the interface counters.
+	 * 
+	 * @param now_nanos timestamp of the sample, used to derive the rates
+	 * @param ticks number of base sampling intervals since the last sample,
+	 * 	each of which is recorded in the history
+	 */
+	public boolean processIfStats(long now_nanos, int ticks) {
 		try {
-			fstream = new FileReader(DEV_FILE);
-		} catch (FileNotFoundException e) {
-			Log.e("MonNet", "Could not read " + DEV_FILE);
+			mScanner.read(mDevFile);
+		} catch (IOException e) {
+			Log.e("MonNet", "Could not read " + mDevPath);
 			return false;
 		}
-		BufferedReader in = new BufferedReader(fstream, 500);
-		String line;
-		String[] segs;
-		try {
-			while ((line = in.readLine()) != null) {
-
-				if (line.startsWith(CELL_DEV)) {
-					segs = line.trim().split("[: ]+");
-					updateStatCounter(segs[1], 0);
-					updateStatCounter(segs[9], 1);
-				} else if (line.startsWith(WIFI_DEV)) {
-					segs = line.trim().split("[: ]+");
-					updateStatCounter(segs[1], 2);
-					updateStatCounter(segs[9], 3);
+		++mGeneration;
+		long elapsed = now_nanos - mLastSampleTime;
+		mLastSampleTime = now_nanos;
+		while (mScanner.next()) {
+			byte[] buf = mScanner.getBuffer();
+			int start = mScanner.getNameStart();
+			int len = mScanner.getNameLength();
+			int id = mInterfaces.find(buf, start, len);
+			if (id < 0) {
+				id = mInterfaces.add(buf, start, len);
+				addCounters(id);
+			}
+			mInterfaces.setCounters(id, mScanner.getRxBytes(),
+					mScanner.getTxBytes(), mGeneration);
+			mCounters[id * 2].update(mScanner.getRxBytes(), elapsed, ticks);
+			mCounters[id * 2 + 1].update(mScanner.getTxBytes(), elapsed, ticks);
+		}
+		if (mInterfaces.removeStale(mGeneration) > 0) {
+			for (int id = 0; id < mInterfaces.getLimit(); ++id) {
+				if (!mInterfaces.isActive(id) && mCounters[id * 2] != null) {
+					// keep the files for when the interface comes back
+					mCounters[id * 2].getHistory().close();
+					mCounters[id * 2 + 1].getHistory().close();
+					mCounters[id * 2] = null;
+					mCounters[id * 2 + 1] = null;
 				}
 			}
-			return true;
-		} catch (IOException e) {
-			Log.e("MonNet", e.toString());
-			return false;
 		}
+		return true;
 	}
 	
-	private void updateStatCounter(String text, int index) {
-		if (mCounters.get(index).update(text, mSamplingInterval)) {
-			if (mCounterViews != null) {
-				mCounters.get(index).paint(mCounterViews.get(index));
+	private void addCounters(int id) {
+		if (id * 2 + 1 >= mCounters.length) {
+			StatCounter[] counters = new StatCounter[Math.max(8, mCounters.length * 2)];
+			System.arraycopy(mCounters, 0, counters, 0, mCounters.length);
+			mCounters = counters;
+		}
+		String name = mInterfaces.getName(id);
+		mCounters[id * 2] = new StatCounter(createHistory(name + "-rx"));
+		mCounters[id * 2 + 1] = new StatCounter(createHistory(name + "-tx"));
+	}
+	
+	private HistoryBuffer createHistory(String series) {
+		if (mHistoryDir == null) {
+			return new HistoryBuffer();
+		}
+		return HistoryBuffer.open(new File(mHistoryDir, HISTORY_PREFIX + series + ".dat"),
+				mSamplingInterval);
+	}
+	
+	/**
+	 * Delete the history files of interfaces which have not been seen for
+	 * longer than the horizon of the history.
+	 */
+	private void expireHistories() {
+		if (mHistoryDir == null) return;
+		String[] files = mHistoryDir.list();
+		if (files == null) return;
+		long expired = System.currentTimeMillis()
+				- HistoryBuffer.getHorizonMillis(mSamplingInterval);
+		for (int i = 0; i < files.length; ++i) {
+			if (!files[i].startsWith(HISTORY_PREFIX)) continue;
+			for (int j = 0; j < HISTORY_SUFFIXES.length; ++j) {
+				if (!files[i].endsWith(HISTORY_SUFFIXES[j])) continue;
+				File file = new File(mHistoryDir, files[i]);
+				if (file.lastModified() < expired) {
+					file.delete();
+				}
 			}
 		}
 	}
 	
+	/**
+	 * Query the state of the cellular and wifi connections. This goes
+	 * through system services and is therefore done on the collector
+	 * thread as well.
+	 */
 	private void processNetStatus() {
-		if (mInfoViews != null) {
-			NetworkInfo cell_cx = mCx.getNetworkInfo(ConnectivityManager.TYPE_MOBILE);
-			NetworkInfo wifi_cx = mCx.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-			WifiInfo wifi_info = mWifi.getConnectionInfo();
-			
-			String cell_label = "";
-			String wifi_label = "";
-			
-			// Cellular data
-			if (cell_cx != null && cell_cx.getState() == NetworkInfo.State.CONNECTED) {
+		NetworkInfo cell_cx = mCx.getNetworkInfo(ConnectivityManager.TYPE_MOBILE);
+		NetworkInfo wifi_cx = mCx.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+		WifiInfo wifi_info = mWifi.getConnectionInfo();
+		
+		String cell_label = "";
+		String wifi_label = "";
+		
+		// Cellular data
+		if (cell_cx != null && cell_cx.getState() == NetworkInfo.State.CONNECTED) {
 			if (mCellular.isNetworkRoaming()) {
 				cell_label += "ROAMING ";
 			}
 			cell_label += mCellular.getNetworkOperatorName();
 			cell_label += getCellularType(mCellular.getNetworkType());
-			}
-			mInfoViews.get(0).setText(cell_label);
-			mInfoViews.get(0).setTextColor(Color.GREEN);
-			
-			// Wifi
-			if (wifi_cx != null && wifi_cx.getState() == NetworkInfo.State.CONNECTED) {			
-				wifi_label = wifi_info.getSSID();
-			}
-			mInfoViews.get(1).setText(wifi_label);
-			mInfoViews.get(1).setTextColor(Color.GREEN);
 		}
+		mCellLabel = cell_label;
+		
+		// Wifi
+		if (wifi_cx != null && wifi_cx.getState() == NetworkInfo.State.CONNECTED) {
+			wifi_label = wifi_info.getSSID();
+		}
+		mWifiLabel = wifi_label;
 	}
 
 	private String getCellularType(int type) {
@@ -8,7 +8,9 @@ import java.util.Vector;
 import android.app.ListActivity;
 import android.os.Bundle;
 import android.os.Handler;
+import android.view.View;
 import android.widget.ArrayAdapter;
+import android.widget.ListView;
 import android.widget.Toast;
 
 
@@ -16,14 +18,25 @@ import android.widget.Toast;
  * 
  * Activity which displays a list of currently running processes,
  * sorted by CPU utilization - similar to the unix top utility.
+ * 
+ * Selecting a process drills down into the CPU utilization of its
+ * threads, selecting any thread returns to the process list.
  *
  */
 public class TaskList extends ListActivity {
 	private static final int DELAY = 30000;
+	// number of tasks shown, about two screens worth
+	private static final int ROWS = 25;
 	final private DecimalFormat mPercentFmt = new DecimalFormat("#0.0");
 	private Top mTop;
 	private ArrayAdapter<String> mAdapter;
 	
+	// pids of the processes currently listed
+	final private int[] mRowPids = new int[ROWS];
+	private int mRowCount = 0;
+	// process whose threads are shown, 0 for the process list
+	private int mThreadPid = 0;
+	
 	// Handler which is executed every 30s
 	// to recalculate the task list and refresh
 	// the display.
@@ -56,6 +69,7 @@ public class TaskList extends ListActivity {
     public void onResume() {
     	super.onResume();
     	mTop = new Top();
+    	mThreadPid = 0;
     	Toast.makeText(this, getText(R.string.disp_collecting), Toast.LENGTH_SHORT).show();
     	mHandler.postDelayed(mRefreshTask, 1000);
     }
@@ -66,6 +80,7 @@ public class TaskList extends ListActivity {
     public void onPause() {
     	super.onPause();
     	mHandler.removeCallbacks(mRefreshTask);
+    	mTop.shutdown();
     	mTop = null;
     }
     
@@ -77,13 +92,42 @@ public class TaskList extends ListActivity {
      * 
      */
     private void redrawList() {
-    	Vector<Top.Task> top_list = mTop.getTopN();
+    	Vector<Top.Task> top_list;
+    	if (mThreadPid != 0) {
+    		top_list = mTop.getThreadTopK(mThreadPid, ROWS);
+    	} else {
+    		top_list = mTop.getTopK(ROWS);
+    		mRowCount = 0;
+    	}
     	mAdapter.clear();
 		for(Iterator<Top.Task> it = top_list.iterator(); it.hasNext(); ) {
 			Top.Task task = it.next();
 			//if (task.getUsage() == 0) break;
 			mAdapter.add(mPercentFmt.format(((double)task.getUsage())/10.0)
 					+ "%  " + task.getName());
+			if (mThreadPid == 0) {
+				mRowPids[mRowCount++] = task.getPid();
+			}
 		}
     }
+    
+    /**
+     * Framework method called when an item in the list is selected.
+     * 
+     * Toggle between the process list and the threads of the selected
+     * process. The first sample of the new view is taken right away, so
+     * that the list can be refreshed with deltas shortly afterwards.
+     */
+    @Override
+    protected void onListItemClick(ListView l, View v, int position, long id) {
+    	if (mThreadPid == 0 && position < mRowCount) {
+    		mThreadPid = mRowPids[position];
+    		mTop.getThreadTopK(mThreadPid, ROWS);
+    	} else {
+    		mThreadPid = 0;
+    	}
+    	mHandler.removeCallbacks(mRefreshTask);
+    	Toast.makeText(this, getText(R.string.disp_collecting), Toast.LENGTH_SHORT).show();
+    	mHandler.postDelayed(mRefreshTask, 1000);
+    }
 }
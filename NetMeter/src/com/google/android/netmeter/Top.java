@@ -1,31 +1,47 @@
 package com.google.android.netmeter;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 import android.util.Log;
 
+/**
+ * Per-process CPU usage, similar to the unix top utility.
+ * 
+ * The usage is derived from the difference of the runtime reported in
+ * /proc/[pid]/stat between two calls to getTopN() or getTopK(). The
+ * snapshots of both calls are kept in two reusable primitive tables, so
+ * a refresh creates hardly any garbage regardless of the number of
+ * processes. On hosts with many
+ * processes, the scan of /proc can optionally be split across a pool of
+ * worker threads, each reading a slice of the pid list into its own partial
+ * map. The merged result is identical to that of the serial scan.
+ */
 class Top {
 
 	class Task implements Comparable<Task> {
+		final private int mPid;
 		final private String mCmd;
 		final private long mUsage;
 		
-		Task(final String command, final long usage) {
+		Task(final int pid, final String command, final long usage) {
+			mPid = pid;
 			mCmd = command;
 			mUsage = usage;
 		}
 		
-		Task delta(Task prev, long total) {
-			return new Task(mCmd, (mUsage - prev.mUsage) * 1000 / total);
+		int getPid() {
+			return mPid;
 		}
 		
 		String getName() {
@@ -37,94 +53,431 @@ class Top {
 		}
 
 		public int compareTo(Task other) {
-			if (mUsage == other.mUsage) return mCmd.compareTo(other.mCmd);
+			if (mUsage == other.mUsage) {
+				int result = mCmd.compareTo(other.mCmd);
+				return result != 0 ? result : mPid - other.mPid;
+			}
 			else return - (int) (mUsage - other.mUsage);
 		}
 		
 	}
 	
-	Map<Integer, Task> mPrevState;
+	final private byte[] APP_PROCESS = "app_process".getBytes();
+	final private static int DEFAULT_CACHE_SIZE = 1024;
+	
+	// Snapshots of the previous and the current refresh, which swap roles
+	// after each refresh so that neither needs to be reallocated.
+	private PidTable mPrevState = new PidTable();
+	private PidTable mCurrentState = new PidTable();
 	long mPrevCpuTime;
 	
+	// thread snapshots of the processes inspected by getThreadTopK()
+	private PidTable mPrevThreads = new PidTable();
+	private PidTable mCurrentThreads = new PidTable();
+	private long mPrevThreadCpuTime;
+	final private int[] mSinglePid = new int[1];
+	
+	final private CmdlineCache mCmdlineCache;
+	final private TopKSelector mSelector = new TopKSelector();
+	
+	// proc root with a trailing separator
+	final private String mProcDir;
+	final private ProcFile mStatFile;
+	
+	// one scanner, cmdline reader and partial snapshot per slice of the
+	// pid list, slice 0 is used by the serial scan
+	final private ProcStatScanner[] mScanners;
+	final private ProcFile[] mReaders;
+	final private PidTable[] mPartials;
+	final private ExecutorService mExecutor;
+	
+	/**
+	 * Task used to scan a slice of the /proc entries in parallel
+	 */
+	private class ScanSlice implements Callable<PidTable> {
+		final private String[] mFiles;
+		final private int mSlice;
+		
+		ScanSlice(String[] files, int slice) {
+			mFiles = files;
+			mSlice = slice;
+		}
+		
+		public PidTable call() {
+			PidTable partial = mPartials[mSlice];
+			partial.clear();
+			int slices = mScanners.length;
+			int from = (int)((long)mFiles.length * mSlice / slices);
+			int to = (int)((long)mFiles.length * (mSlice + 1) / slices);
+			scanRange(mFiles, from, to, mScanners[mSlice], mReaders[mSlice], partial);
+			return partial;
+		}
+	}
+	
 	Top() {
+		this(DEFAULT_CACHE_SIZE, 1);
+	}
+	
+	/**
+	 * @param cache_size maximum number of command lines of app_process
+	 * 	tasks to cache between refreshes
+	 * @param parallelism number of threads used to scan /proc, 1 to scan
+	 * 	serially on the calling thread
+	 */
+	Top(int cache_size, int parallelism) {
+		this(cache_size, parallelism, ProcFile.PROC_ROOT);
+	}
+	
+	/**
+	 * @param proc_root root of the proc file system to read
+	 */
+	Top(int cache_size, int parallelism, String proc_root) {
+		mProcDir = proc_root + "/";
+		mStatFile = new ProcFile(mProcDir + "stat");
+		mCmdlineCache = new CmdlineCache(cache_size);
+		if (parallelism < 1) {
+			parallelism = 1;
+		}
+		mScanners = new ProcStatScanner[parallelism];
+		mReaders = new ProcFile[parallelism];
+		mPartials = new PidTable[parallelism];
+		for (int i = 0; i < parallelism; ++i) {
+			mScanners[i] = new ProcStatScanner();
+			mReaders[i] = new ProcFile();
+			mPartials[i] = new PidTable();
+		}
+		if (parallelism > 1) {
+			mExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "TopScan");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			mExecutor = null;
+		}
 		mPrevCpuTime = readCpuTime();
-		mPrevState = readProcInfo();
+		readProcInfo();
+		swapState();
 	}
 	
+	/**
+	 * @return all tasks which have been running since the previous call,
+	 * 	sorted by descending CPU usage in units of 0.1%
+	 */
 	public Vector<Task> getTopN() {
-		Map<Integer, Task> current = readProcInfo();
+		readProcInfo();
 		long cpu_time = readCpuTime();
-		long delta_time = cpu_time - mPrevCpuTime;
-		
-		Set<Integer> pids = current.keySet();
-		pids.retainAll(mPrevState.keySet());
+		long delta_time = getDeltaTime(cpu_time);
 		
 		Vector<Task> results = new Vector<Task>();
-		for(Iterator<Integer> it = pids.iterator(); it.hasNext();) {
-			int index = it.next();
-			results.add(current.get(index).delta(mPrevState.get(index), delta_time));
+		PidTable current = mCurrentState;
+		for (int slot = 0; slot < current.capacity(); ++slot) {
+			if (!current.isUsed(slot)) continue;
+			int prev = mPrevState.find(current.getPid(slot),
+					current.getStartTime(slot));
+			if (prev < 0) continue;
+			results.add(new Task(current.getPid(slot), current.getName(slot),
+					(current.getRuntime(slot) - mPrevState.getRuntime(prev))
+					* 1000 / delta_time));
 		}
 		Collections.sort(results);
 		
-		mPrevState = current;
+		swapState();
 		mPrevCpuTime = cpu_time;
 		return results;	
 	}
 	
-	private Map<Integer, Task> readProcInfo() {
-		Map<Integer, Task> stats = new HashMap<Integer, Task>();
-		File proc_dir = new File("/proc/");
+	/**
+	 * Like getTopN(), but only return the k tasks with the highest usage.
+	 * 
+	 * The deltas are fed into a bounded heap instead of being collected
+	 * and sorted, which takes O(n log k) and only allocates the k
+	 * resulting tasks.
+	 */
+	public Vector<Task> getTopK(int k) {
+		readProcInfo();
+		long cpu_time = readCpuTime();
+		long delta_time = getDeltaTime(cpu_time);
+		
+		Vector<Task> results = selectTopK(mCurrentState, mPrevState, delta_time, k);
+		
+		swapState();
+		mPrevCpuTime = cpu_time;
+		return results;
+	}
+	
+	/**
+	 * Per-thread breakdown of the CPU usage of a single process.
+	 * 
+	 * @see #getThreadTopK(int[], int, int)
+	 */
+	public Vector<Task> getThreadTopK(int pid, int k) {
+		mSinglePid[0] = pid;
+		return getThreadTopK(mSinglePid, 1, k);
+	}
+	
+	/**
+	 * Return the k threads with the highest CPU usage out of the threads of
+	 * the given processes, where the usage of each thread is the delta of its
+	 * /proc/[pid]/task/[tid]/stat runtime since the previous call to this
+	 * method. Threads which were not inspected by the previous call, e.g.
+	 * when drilling into a new process, show up from the next call on.
+	 * 
+	 * Only the task directories of the given processes are read, so the
+	 * cost depends on the number of threads inspected rather than on the
+	 * total number of threads on the system. The thread snapshots are kept
+	 * in their own pair of tables, independent of the process view.
+	 * 
+	 * @param pids processes to break down, e.g. the pids of getTopK()
+	 * @param count number of valid entries in pids
+	 * @param k maximum number of threads returned
+	 */
+	public Vector<Task> getThreadTopK(int[] pids, int count, int k) {
+		mCurrentThreads.clear();
+		for (int i = 0; i < count; ++i) {
+			readThreadInfo(pids[i], mCurrentThreads);
+		}
+		long cpu_time = readCpuTime();
+		long delta_time = cpu_time - mPrevThreadCpuTime;
+		if (delta_time <= 0) {
+			delta_time = 1;
+		}
+		
+		Vector<Task> results = selectTopK(mCurrentThreads, mPrevThreads, delta_time, k);
+		
+		PidTable prev = mPrevThreads;
+		mPrevThreads = mCurrentThreads;
+		mCurrentThreads = prev;
+		mPrevThreadCpuTime = cpu_time;
+		return results;
+	}
+	
+	/**
+	 * Select the k tasks of the current snapshot with the highest runtime
+	 * delta relative to the previous one.
+	 */
+	private Vector<Task> selectTopK(PidTable current, PidTable prev_state,
+			long delta_time, int k) {
+		mSelector.reset(k);
+		for (int slot = 0; slot < current.capacity(); ++slot) {
+			if (!current.isUsed(slot)) continue;
+			int prev = prev_state.find(current.getPid(slot),
+					current.getStartTime(slot));
+			if (prev < 0) continue;
+			mSelector.offer(current.getPid(slot),
+					(current.getRuntime(slot) - prev_state.getRuntime(prev))
+					* 1000 / delta_time,
+					current.getName(slot));
+		}
+		mSelector.sort();
+		
+		Vector<Task> results = new Vector<Task>(mSelector.size());
+		for (int i = 0; i < mSelector.size(); ++i) {
+			results.add(new Task(mSelector.getPid(i), mSelector.getName(i),
+					mSelector.getUsage(i)));
+		}
+		return results;
+	}
+	
+	private long getDeltaTime(long cpu_time) {
+		long delta_time = cpu_time - mPrevCpuTime;
+		return delta_time > 0 ? delta_time : 1;
+	}
+	
+	private void swapState() {
+		PidTable prev = mPrevState;
+		mPrevState = mCurrentState;
+		mCurrentState = prev;
+	}
+	
+	/**
+	 * Cache of app_process command lines, exposed for its hit/miss counters.
+	 */
+	public CmdlineCache getCmdlineCache() {
+		return mCmdlineCache;
+	}
+	
+	/**
+	 * Release the worker threads of a parallel scan and the file handle
+	 * kept open for sampling.
+	 */
+	public void shutdown() {
+		if (mExecutor != null) {
+			mExecutor.shutdown();
+		}
+		mStatFile.close();
+	}
+	
+	/**
+	 * Read the state of all processes into mCurrentState.
+	 */
+	private void readProcInfo() {
+		File proc_dir = new File(mProcDir);
 
 		String files[] = proc_dir.list();
-		for (int i = 0; i < files.length; ++i) {
-			if( files[i].matches("[0-9]+") == true ) {
-				String stat = readData("/proc/" + files[i] + "/stat");
-				if (stat == null) continue;
-
-				String[] segs = stat.split("[ ]+");
-				long runtime = Long.parseLong(segs[13]) + Long.parseLong(segs[14]);
+		if (mExecutor == null || !readProcInfoParallel(files)) {
+			mCurrentState.clear();
+			scanRange(files, 0, files.length, mScanners[0], mReaders[0], mCurrentState);
+		}
+		synchronized (mCmdlineCache) {
+			mCmdlineCache.sweep();
+		}
+	}
+	
+	/**
+	 * Scan the /proc entries in parallel slices and replace mCurrentState
+	 * by the merged partial snapshots.
+	 * 
+	 * @return false if the parallel scan failed, in which case all slices
+	 * 	have finished and their state may be reused by a serial scan
+	 */
+	private boolean readProcInfoParallel(String[] files) {
+		List<Future<PidTable>> partials =
+			new ArrayList<Future<PidTable>>(mScanners.length);
+		for (int i = 0; i < mScanners.length; ++i) {
+			partials.add(mExecutor.submit(new ScanSlice(files, i)));
+		}
+		mCurrentState.clear();
+		try {
+			for (int i = 0; i < partials.size(); ++i) {
+				mCurrentState.putAll(partials.get(i).get());
+			}
+		} catch (InterruptedException e) {
+			Log.w("NetMeter", "parallel /proc scan interrupted");
+			awaitSlices(partials);
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			Log.w("NetMeter", "parallel /proc scan failed: " + e.getCause());
+			awaitSlices(partials);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Wait until all slices have finished. Slices are not cancelled, since
+	 * a slice which is already running would carry on regardless, using the
+	 * scanner and reader of its slot.
+	 */
+	private void awaitSlices(List<Future<PidTable>> partials) {
+		boolean interrupted = false;
+		for (int i = 0; i < partials.size(); ++i) {
+			while (true) {
+				try {
+					partials.get(i).get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Read the state of the processes in files[from..to) into stats.
+	 * 
+	 * Display names are carried over from the previous snapshot while the
+	 * process (pid and start time) stays the same, so that steady-state
+	 * refreshes do not create new Strings.
+	 */
+	private void scanRange(String[] files, int from, int to,
+			ProcStatScanner scanner, ProcFile reader, PidTable stats) {
+		for (int i = from; i < to; ++i) {
+			int pid = ProcStatScanner.parsePid(files[i]);
+			if (pid < 0) continue;
+			if (!scanner.read(mProcDir + files[i] + "/stat")) continue;
 
-				String cmdline = segs[1];
-				if (cmdline.contains("(app_process)")) {
-					String pkg_name = readData("/proc/" + files[i]+ "/cmdline");
+			long start_time = scanner.getStartTime();
+			String cmdline;
+			if (scanner.commEquals(APP_PROCESS)) {
+				// the package name is only looked up once per process
+				synchronized (mCmdlineCache) {
+					cmdline = mCmdlineCache.get(pid, start_time);
+				}
+				if (cmdline == null) {
+					String pkg_name = readLine(reader, mProcDir + files[i]+ "/cmdline");
 
 					cmdline = cleanCmdline(pkg_name);
-				} 
-				stats.put(Integer.parseInt(files[i]),
-						new Task(cmdline, runtime));
+					synchronized (mCmdlineCache) {
+						mCmdlineCache.put(pid, start_time, cmdline);
+					}
+				}
+			} else {
+				int prev = mPrevState.find(pid, start_time);
+				cmdline = (prev >= 0) ? mPrevState.getName(prev) : scanner.getComm();
 			}
+			stats.put(pid, scanner.getRuntime(), start_time, cmdline);
 		}
-		return stats;
 	}
 	
+	/**
+	 * Read the state of all threads of a process into stats, keyed by tid.
+	 */
+	private void readThreadInfo(int pid, PidTable stats) {
+		String task_dir = mProcDir + pid + "/task/";
+		String tids[] = new File(task_dir).list();
+		if (tids == null) return; // process has exited
+		ProcStatScanner scanner = mScanners[0];
+		for (int i = 0; i < tids.length; ++i) {
+			int tid = ProcStatScanner.parsePid(tids[i]);
+			if (tid < 0) continue;
+			if (!scanner.read(task_dir + tids[i] + "/stat")) continue;
+			
+			long start_time = scanner.getStartTime();
+			int prev = mPrevThreads.find(tid, start_time);
+			String name = (prev >= 0) ? mPrevThreads.getName(prev) : scanner.getComm();
+			stats.put(tid, scanner.getRuntime(), start_time, name);
+		}
+	}
+	
+	/**
+	 * @return user + nice + system + idle ticks from the aggregate cpu line
+	 */
 	private long readCpuTime() {
-		String cpustat = readData("proc/stat");
-		if (cpustat == null) {
+		try {
+			mStatFile.read();
+		} catch (IOException e) {
+			Log.i("NetMeter", "read error on /proc/stat");
 			return 0;
 		}
-		String[] segs = cpustat.split("[ ]+");
-		
-		return Long.parseLong(segs[1]) + Long.parseLong(segs[2])
-				+ Long.parseLong(segs[3]) + Long.parseLong(segs[4]);
-		
+		byte[] data = mStatFile.getData();
+		int length = mStatFile.getLength();
+		// skip the "cpu" label
+		int pos = 0;
+		while (pos < length && data[pos] != ' ') ++pos;
+		long total = 0;
+		for (int field = 0; field < 4; ++field) {
+			while (pos < length && data[pos] == ' ') ++pos;
+			long value = 0;
+			while (pos < length && data[pos] >= '0' && data[pos] <= '9') {
+				value = value * 10 + (data[pos++] - '0');
+			}
+			total += value;
+		}
+		return total;
 	}
 
-	private String readData(String filename) {
-		FileReader fstream;
-		try {
-			fstream = new FileReader(filename);
-		} catch (FileNotFoundException e) {
+	/**
+	 * @return first line of the given file or null if it cannot be read
+	 */
+	private String readLine(ProcFile reader, String filename) {
+		if (!reader.read(filename)) {
 			Log.i("NetMeter", "File access error " + filename);
 			return null;
 		}
-		
-		BufferedReader in = new BufferedReader(fstream, 500);
-		try {
-			return in.readLine();
-		} catch (IOException e) {
-			Log.i("NetMeter", "read error on " + filename);
-			return null;
-		}	
+		byte[] data = reader.getData();
+		int length = reader.getLength();
+		int end = 0;
+		while (end < length && data[end] != '\n') ++end;
+		return new String(data, 0, end);
 	}
 	
 	private String cleanCmdline(String raw) {
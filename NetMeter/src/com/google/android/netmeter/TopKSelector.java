@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.netmeter;
+
+/**
+ * Selects the K tasks with the highest usage out of a stream of candidates.
+ *
+ * Candidates are kept in a bounded binary min-heap, stored in parallel
+ * primitive arrays, with the least significant entry at the root. Each
+ * offer costs O(log K) and no objects are allocated per candidate. The
+ * order is the same as Top.Task.compareTo: by descending usage, then by
+ * name and pid.
+ */
+class TopKSelector {
+	private int[] mPids = new int[0];
+	private long[] mUsage = new long[0];
+	private String[] mNames = new String[0];
+	private int mLimit = 0;
+	private int mSize = 0;
+
+	/**
+	 * Start a new selection of at most k entries.
+	 */
+	public void reset(int k) {
+		if (k > mPids.length) {
+			mPids = new int[k];
+			mUsage = new long[k];
+			mNames = new String[k];
+		}
+		for (int i = 0; i < mSize; ++i) {
+			mNames[i] = null;
+		}
+		mLimit = k;
+		mSize = 0;
+	}
+
+	public void offer(int pid, long usage, String name) {
+		if (mSize < mLimit) {
+			set(mSize, pid, usage, name);
+			siftUp(mSize++);
+		} else if (mLimit > 0 && !less(pid, usage, name, 0)) {
+			set(0, pid, usage, name);
+			siftDown(0, mSize);
+		}
+	}
+
+	/**
+	 * Sort the selected entries in place, most significant first.
+	 * After this, the heap must be reset before offering new entries.
+	 */
+	public void sort() {
+		for (int end = mSize - 1; end > 0; --end) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int getPid(int i) {
+		return mPids[i];
+	}
+
+	public long getUsage(int i) {
+		return mUsage[i];
+	}
+
+	public String getName(int i) {
+		return mNames[i];
+	}
+
+	private void set(int i, int pid, long usage, String name) {
+		mPids[i] = pid;
+		mUsage[i] = usage;
+		mNames[i] = name;
+	}
+
+	// true if the candidate ranks below the entry at position i
+	private boolean less(int pid, long usage, String name, int i) {
+		if (usage != mUsage[i]) return usage < mUsage[i];
+		int cmp = name.compareTo(mNames[i]);
+		if (cmp != 0) return cmp > 0;
+		return pid > mPids[i];
+	}
+
+	private boolean less(int i, int j) {
+		return less(mPids[i], mUsage[i], mNames[i], j);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!less(i, parent)) break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int size) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) break;
+			if (child + 1 < size && less(child + 1, child)) {
+				++child;
+			}
+			if (!less(child, i)) break;
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int pid = mPids[i];
+		mPids[i] = mPids[j];
+		mPids[j] = pid;
+		long usage = mUsage[i];
+		mUsage[i] = mUsage[j];
+		mUsage[j] = usage;
+		String name = mNames[i];
+		mNames[i] = mNames[j];
+		mNames[j] = name;
+	}
+}